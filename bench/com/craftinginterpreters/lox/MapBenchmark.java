@@ -0,0 +1,71 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+
+// LoxMap against the instance-field workaround, LoxInstance.set / get with the key as the field
+// name, on the same keys. number keys go through the workaround as their printed form. every
+// field added copies the Shape's slot table, so past ~5000 keys the workaround runs out of heap:
+//   java -cp out com.craftinginterpreters.lox.MapBenchmark [keys] [rounds]
+public class MapBenchmark {
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        String[] strings = new String[keys];
+        Double[] numbers = new Double[keys];
+        Token[] names = new Token[keys];
+        Token[] numberNames = new Token[keys];
+        for (int i = 0; i < keys; i++) {
+            strings[i] = "key" + i;
+            numbers[i] = (double) i;
+            names[i] = new Token(TokenType.IDENTIFIER, strings[i], null, 1);
+            numberNames[i] = new Token(TokenType.IDENTIFIER, Interpreter.format(numbers[i]), null, 1);
+        }
+        LoxClass klass = new LoxClass("Map", null, new HashMap<>());
+
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int round = 0; round < WARMUP + rounds; round++) {
+            double[] ns = {
+                    time(keys, () -> fillMap(strings)),
+                    time(keys, () -> fillMap(numbers)),
+                    time(keys, () -> fillInstance(klass, names)),
+                    time(keys, () -> fillInstance(klass, numberNames)),
+            };
+            if (round < WARMUP) continue;
+
+            for (int i = 0; i < ns.length; i++) best[i] = Math.min(best[i], ns[i]);
+            System.out.printf("round %2d: map %.1f / %.1f ns, fields %.1f / %.1f ns per put+get (string / number keys)%n",
+                    round - WARMUP, ns[0], ns[1], ns[2], ns[3]);
+        }
+        System.out.printf("best: map %.1f / %.1f ns, fields %.1f / %.1f ns per put+get (string / number keys)%n",
+                best[0], best[1], best[2], best[3]);
+    }
+
+    // small maps are filled again and again, so that every sample covers about a million keys
+    private static double time(int keys, Runnable fill) {
+        int repeat = Math.max(1, 1_000_000 / keys);
+        long start = System.nanoTime();
+        for (int i = 0; i < repeat; i++) fill.run();
+        return (System.nanoTime() - start) / ((double) keys * repeat);
+    }
+
+    private static Object sink;
+
+    private static void fillMap(Object[] keys) {
+        LoxMap map = new LoxMap();
+        for (Object key : keys) map.put(key, key);
+        Object last = null;
+        for (Object key : keys) last = map.get(key);
+        sink = last;
+    }
+
+    private static void fillInstance(LoxClass klass, Token[] names) {
+        LoxInstance instance = new LoxInstance(klass);
+        for (Token name : names) instance.set(name, name);
+        Object last = null;
+        for (Token name : names) last = instance.get(name);
+        sink = last;
+    }
+}
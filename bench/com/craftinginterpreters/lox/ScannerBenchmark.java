@@ -0,0 +1,54 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// scanner throughput in MB/s of source chars, over a script given on the command line or a
+// generated one that is mostly keywords and identifiers:
+//   java -cp out com.craftinginterpreters.lox.ScannerBenchmark [script.lox] [rounds]
+public class ScannerBenchmark {
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws IOException {
+        String source = args.length > 0 ? Files.readString(Path.of(args[0])) : generate(20000);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        LoxContext context = new LoxEngine().newContext();
+
+        double best = 0;
+        for (int round = 0; round < WARMUP + rounds; round++) {
+            long start = System.nanoTime();
+            int tokens = scan(source, context);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double mbPerSecond = source.length() / 1e6 / seconds;
+            if (round < WARMUP) continue;
+
+            best = Math.max(best, mbPerSecond);
+            System.out.printf("round %2d: %d tokens, %.1f MB/s%n", round - WARMUP, tokens, mbPerSecond);
+        }
+        System.out.printf("best: %.1f MB/s%n", best);
+    }
+
+    private static int scan(String source, LoxContext context) {
+        Scanner scanner = new Scanner(source, context);
+        int tokens = 0;
+        while (scanner.next().type != TokenType.EOF) tokens++;
+        return tokens;
+    }
+
+    private static String generate(int functions) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            sb.append("fun counter(start, step) {\n")
+              .append("    var total = start;\n")
+              .append("    while (total < 100 and step != nil) {\n")
+              .append("        if (total > 50 or false) { total = total + step * 2; } else { total = total + 1; }\n")
+              .append("    }\n")
+              .append("    return total;\n")
+              .append("}\n")
+              .append("class Point { init(x, y) { this.x = x; this.y = y; } }\n")
+              .append("var label = \"point\";\n");
+        }
+        return sb.toString();
+    }
+}
@@ -1,9 +1,10 @@
 package com.craftinginterpreters.lib;
 
 import com.craftinginterpreters.lox.Interpreter;
+import com.craftinginterpreters.lox.LoxArray;
 import com.craftinginterpreters.lox.LoxCallable;
+import com.craftinginterpreters.lox.LoxMap;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class std {
@@ -49,14 +50,13 @@ public class std {
 
     public static class io {
 
-        public static java.util.Scanner s = new java.util.Scanner(System.in);
-       
         public static class cin implements LoxCallable {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
 
-                return s.next();
+                // each context reads its own input stream
+                return interpreter.context().in().next();
 
             }
 
@@ -79,8 +79,10 @@ public class std {
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
                 Object v1 =  args.get(0);
-                if (v1 instanceof ArrayList<?> c){
-                    return (double)c.size();
+                if (v1 instanceof LoxArray array){
+                    return (double)array.length();
+                } else if (v1 instanceof LoxMap map) {
+                    return (double)map.size();
                 } else {
                     return ((String) v1).length();
                 }
@@ -180,5 +182,153 @@ public class std {
         }
     }
 
-}
+    public static class array {
+
+        // appends in place, amortized O(1)
+        public static class append implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxArray array = (LoxArray) args.get(0);
+                array.append(args.get(1));
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - append>";
+            }
+        }
+
+        // elements [from, to) sharing the array's storage, no copy
+        public static class slice implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxArray array = (LoxArray) args.get(0);
+                Double from = (Double) args.get(1);
+                Double to = (Double) args.get(2);
+                return array.slice(from.intValue(), to.intValue());
+            }
+
+            @Override
+            public int arity() {
+                return 3;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - slice>";
+            }
+        }
+    }
+
+    public static class map {
+
+        // room for that many entries up front, saves the rehashing while it fills
+        public static class reserve implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxMap map = (LoxMap) args.get(0);
+                Double capacity = (Double) args.get(1);
+                map.reserve(capacity.intValue());
+                return null;
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - reserve>";
+            }
+        }
+
+        public static class has implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxMap map = (LoxMap) args.get(0);
+                return map.containsKey(args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - has>";
+            }
+        }
+
+        public static class remove implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxMap map = (LoxMap) args.get(0);
+                return map.remove(args.get(1));
+            }
+
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - remove>";
+            }
+        }
+
+        // in insertion order, as an array
+        public static class keys implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxMap map = (LoxMap) args.get(0);
+                return map.keys();
+            }
 
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - keys>";
+            }
+        }
+
+        // in the order of keys()
+        public static class values implements LoxCallable {
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                LoxMap map = (LoxMap) args.get(0);
+                return map.values();
+            }
+
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fun - values>";
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// parsed and resolved programs keyed by a hash of their source, shared by the contexts of an engine.
+// a program is taken out while it runs since its nodes keep per-run inline caches, so a second
+// run of the same source at the same time parses its own copy
+final class AstCache {
+
+    static final class Program {
+        final List<Stmt> statements;
+        final int frameSize;
+        private final List<Expr.Get> gets;
+        private final List<Expr.Set> sets;
+        // compiled on first use by the VM engine
+        Chunk chunk = null;
+
+        Program(List<Stmt> statements, Resolver resolver) {
+            this(statements, resolver.frameSize(), resolver.gets, resolver.sets);
+        }
+
+        Program(List<Stmt> statements, int frameSize, List<Expr.Get> gets, List<Expr.Set> sets) {
+            this.statements = statements;
+            this.frameSize = frameSize;
+            this.gets = gets;
+            this.sets = sets;
+        }
+
+        // type feedback stays, what points into the finished run goes
+        private void reset() {
+            for (Expr.Get get : gets) get.resetCache();
+            for (Expr.Set set : sets) set.resetCache();
+        }
+    }
+
+    private final Map<String, Program> programs;
+    private long hits = 0;
+    private long misses = 0;
+
+    AstCache(int capacity) {
+        this.programs = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // hashes the UTF-16 chars through a small buffer, the source may be a mapped file too large to copy
+    static String key(CharSequence source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int used = 0;
+            for (int i = 0; i < source.length(); i++) {
+                char c = source.charAt(i);
+                buffer[used++] = (byte) (c >> 8);
+                buffer[used++] = (byte) c;
+                if (used == buffer.length) {
+                    digest.update(buffer, 0, used);
+                    used = 0;
+                }
+            }
+            digest.update(buffer, 0, used);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized Program take(String key) {
+        Program program = programs.remove(key);
+        if (program == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return program;
+    }
+
+    void put(String key, Program program) {
+        program.reset();
+        synchronized (this) {
+            programs.putIfAbsent(key, program);
+        }
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return programs.size();
+    }
+}
@@ -1,12 +1,26 @@
 package com.craftinginterpreters.lox;
 
-import java.util.Arrays;
+import java.util.List;
 
-abstract class AstPrinter implements Expr.Visitor<String> {
+// prints the tree as s-expressions, one top-level statement per line. --dump-ast uses it to show
+// what the Optimizer left of a script
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    String print(List<Stmt> statements) {
+        StringBuilder sb = new StringBuilder();
+        for (Stmt stmt : statements) {
+            sb.append(print(stmt)).append("\n");
+        }
+        return sb.toString();
+    }
+
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme,
@@ -21,19 +35,23 @@ abstract class AstPrinter implements Expr.Visitor<String> {
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
         if (expr.value == null) return "nil";
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
         return expr.value.toString();
     }
 
     @Override
     public String visitMultiLiteralExpr(Expr.MultiLiteral expr) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (Object e : expr.values) {
-            sb.append(e + " ,");
-        }
-        sb.append("]");
+        return parenthesize("array", expr.elements.toArray(new Expr[0]));
+    }
 
-        return sb.toString();
+    @Override
+    public String visitMapLiteralExpr(Expr.MapLiteral expr) {
+        Expr[] entries = new Expr[expr.keys.size() * 2];
+        for (int i = 0; i < expr.keys.size(); i++) {
+            entries[2 * i] = expr.keys.get(i);
+            entries[2 * i + 1] = expr.values.get(i);
+        }
+        return parenthesize("map", entries);
     }
 
     @Override
@@ -43,39 +61,143 @@ abstract class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return "Variable : " + expr.name;
+        return expr.name.lexeme;
     }
 
     @Override
     public String visitGlobalVariableExpr(Expr.GlobalVariable expr) {
-        return "Global Variable " + expr.name;
+        return "global::" + expr.name.lexeme;
     }
 
     @Override
     public String visitAssignmentExpr(Expr.Assignment expr) {
-        return "Assignment of Variable(" + expr.name + ") with value : " + expr.value;
+        return parenthesize("= " + expr.name.lexeme, expr.value);
     }
 
     @Override
     public String visitLogicalExpr(Expr.Logical expr) {
-        return null;
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
     @Override
     public String visitTernaryExpr(Expr.Ternary expr) {
-        return null;
+        return parenthesize("?:", expr.condition, expr.thenValue, expr.elseValue);
     }
 
     @Override
     public String visitCallExpr(Expr.Call expr) {
-        return null;
+        return parenthesize("call " + print(expr.callee), expr.args.toArray(new Expr[0]));
     }
 
     @Override
     public String visitAnonymousFuncExpr(Expr.AnonymousFunc expr) {
-        return null;
+        return print(expr.func);
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get get) {
+        return parenthesize("." + get.name.lexeme, get.Obj);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set set) {
+        return parenthesize("=." + set.name.lexeme, set.obj, set.value);
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This aThis) {
+        return "this";
+    }
+
+    @Override
+    public String visitSubscriptExpr(Expr.Subscript subscript) {
+        return parenthesize("[]", subscript.object, subscript.index);
+    }
+
+    @Override
+    public String visitSubscriptSetExpr(Expr.SubscriptSet subscript) {
+        return parenthesize("=[]", subscript.object, subscript.index, subscript.value);
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expr);
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expr);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.value == null) return "(var " + stmt.name.lexeme + ")";
+        return parenthesize("var " + stmt.name.lexeme, stmt.value);
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return block("block", stmt.statements);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        String branches = print(stmt.thenBranch) + (stmt.elseBranch == null ? "" : " " + print(stmt.elseBranch));
+        return "(if " + print(stmt.condition) + " " + branches + ")";
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        StringBuilder params = new StringBuilder("(");
+        for (Token param : stmt.params) {
+            if (params.length() > 1) params.append(" ");
+            params.append(param.lexeme);
+        }
+        params.append(")");
+        return block("fun " + stmt.name.lexeme + " " + params, stmt.body);
+    }
+
+    @Override
+    public String visitBreakStmt(Stmt.Break stmt) {
+        return "(break)";
     }
 
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder sb = new StringBuilder("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) sb.append(" < ").append(stmt.superclass.name.lexeme);
+        for (Stmt.Function method : stmt.funcs) {
+            sb.append(" ").append(print(method));
+        }
+        return sb.append(")").toString();
+    }
+
+    @Override
+    public String visitUseLibStmt(Stmt.UseLib useLib) {
+        return "(use " + useLib.name.lexeme + ")";
+    }
+
+    private String block(String name, List<Stmt> statements) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(").append(name);
+        for (Stmt stmt : statements) {
+            sb.append(" ").append(print(stmt));
+        }
+        sb.append(")");
+
+        return sb.toString();
+    }
 
     private String parenthesize(String name , Expr... exprs) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,164 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// bytecode of one function, nested functions are Chunk constants of their parent
+public class Chunk {
+
+    public static class ConstPool {
+        Object[] values = new Object[8];
+        int count = 0;
+
+        // numbers and names are shared, everything else gets its own entry
+        private final Map<Object, Integer> index = new HashMap<>();
+
+        public int add(Object value) {
+            boolean shareable = value instanceof Double || value instanceof String;
+            if (shareable) {
+                Integer i = index.get(value);
+                if (i != null) return i;
+            }
+
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count] = value;
+            if (shareable) index.put(value, count);
+            return count++;
+        }
+
+        public Object get(int i) {
+            return values[i];
+        }
+
+        public int size() {
+            return count;
+        }
+    }
+
+    final String name;
+    final int arity;
+    int upvalueCount = 0;
+
+    byte[] code = new byte[16];
+    int[] lines = new int[16];
+    int count = 0;
+    final ConstPool constants = new ConstPool();
+
+    public Chunk(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    public int addConst(Object value) {
+        return constants.add(value);
+    }
+
+    // drop the spare capacity once the compiler is done with the chunk
+    void trim() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants.values = Arrays.copyOf(constants.values, constants.count);
+    }
+
+    int readShort(int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    public String toString() {
+        return name == null ? "<script>" : "<fun " + name + ">";
+    }
+
+    public void disassemble(PrintStream out) {
+        out.printf("== %s ==\n", this);
+
+        for (int offset = 0; offset < count;) {
+            offset = disassemble(out, offset);
+        }
+
+        for (int i = 0; i < constants.count; i++) {
+            if (constants.values[i] instanceof Chunk fn) fn.disassemble(out);
+        }
+    }
+
+    public int disassemble(PrintStream out, int offset) {
+        out.printf("%04d ", offset);
+
+        if (offset > 0 && lines[offset] == lines[offset - 1]) {
+            out.print("   | ");
+        } else {
+            out.printf("%4d ", lines[offset]);
+        }
+
+        byte instruction = code[offset];
+        switch (instruction) {
+            case OP_CONST:
+                return constantInstruction(out, instruction, code[offset + 1] & 0xff, offset, 2);
+            case OP_CONST_LONG:
+                return constantInstruction(out, instruction,
+                        ((code[offset + 1] & 0xff) << 16) | readShort(offset + 2), offset, 4);
+            case OP_GET_GLOBAL: case OP_DEFINE_GLOBAL: case OP_SET_GLOBAL:
+            case OP_GET_PROPERTY: case OP_SET_PROPERTY:
+            case OP_CLASS: case OP_METHOD:
+                return constantInstruction(out, instruction, readShort(offset + 1), offset, 3);
+            case OP_GET_LOCAL: case OP_SET_LOCAL:
+            case OP_GET_UPVALUE: case OP_SET_UPVALUE:
+            case OP_CALL: case OP_TAIL_CALL:
+                out.printf("%-16s %4d\n", names[instruction], code[offset + 1] & 0xff);
+                return offset + 2;
+            case OP_ARRAY: case OP_MAP:
+                out.printf("%-16s %4d\n", names[instruction], readShort(offset + 1));
+                return offset + 3;
+            case OP_JUMP: case OP_JUMP_IF_FALSE:
+                out.printf("%-16s %4d -> %d\n", names[instruction], offset, offset + 3 + readShort(offset + 1));
+                return offset + 3;
+            case OP_LOOP:
+                out.printf("%-16s %4d -> %d\n", names[instruction], offset, offset + 3 - readShort(offset + 1));
+                return offset + 3;
+            case OP_INVOKE:
+                out.printf("%-16s (%d args) %4d '%s'\n", names[instruction],
+                        code[offset + 3] & 0xff, readShort(offset + 1), constants.get(readShort(offset + 1)));
+                return offset + 4;
+            case OP_USE:
+                out.printf("%-16s '%s' '%s'\n", names[instruction],
+                        constants.get(readShort(offset + 1)), constants.get(readShort(offset + 3)));
+                return offset + 5;
+            case OP_CLOSURE: {
+                Chunk fn = (Chunk) constants.get(readShort(offset + 1));
+                out.printf("%-16s %4d %s\n", names[instruction], readShort(offset + 1), fn);
+                offset += 3;
+                for (int i = 0; i < fn.upvalueCount; i++) {
+                    out.printf("%04d    |                     %s %d\n",
+                            offset, code[offset] == 1 ? "local" : "upvalue", code[offset + 1] & 0xff);
+                    offset += 2;
+                }
+                return offset;
+            }
+            default:
+                if (instruction >= 0 && instruction < names.length) {
+                    out.println(names[instruction]);
+                } else {
+                    out.println("Unknown opcode " + instruction);
+                }
+                return offset + 1;
+        }
+    }
+
+    private int constantInstruction(PrintStream out, byte instruction, int constant, int offset, int size) {
+        out.printf("%-16s %4d '%s'\n", names[instruction], constant, constants.get(constant));
+        return offset + size;
+    }
+}
@@ -0,0 +1,189 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// .loxc files: the chunks the Compiler produced, loaded straight into the VM without
+// running the scanner, parser, resolver or compiler again.
+//
+//   file     = "LOXC" u16 version chunk
+//   chunk    = string-or-nil name, u8 arity, u16 upvalueCount,
+//              u32 count, code[count], u32 runs, (u32 line, u32 length)[runs],
+//              u32 constants, constant[constants]
+//   constant = u8 tag, then a double, a string or a chunk
+//   string   = u32 length, UTF-8 bytes
+//
+// numbers are big endian, as DataOutputStream writes them
+final class ChunkFile {
+
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int VERSION = 4;
+
+    private static final byte TAG_NIL = 0;
+    private static final byte TAG_FALSE = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_NUMBER = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_FUNCTION = 5;
+    // arrays were constants before version 3, now OP_ARRAY builds them
+    private static final byte TAG_LIST = 6;
+
+    static class FormatError extends Exception {
+        FormatError(String message) {
+            super(message);
+        }
+    }
+
+    private ChunkFile() {}
+
+    static void write(Chunk script, Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            writeChunk(out, script);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, Chunk chunk) throws IOException {
+        if (chunk.name == null) {
+            out.writeInt(-1);
+        } else {
+            writeString(out, chunk.name);
+        }
+        out.writeByte(chunk.arity);
+        out.writeShort(chunk.upvalueCount);
+
+        out.writeInt(chunk.count);
+        out.write(chunk.code, 0, chunk.count);
+
+        // lines repeat for every byte of a statement, store them as runs
+        int runs = 0;
+        for (int i = 0; i < chunk.count; i++) {
+            if (i == 0 || chunk.lines[i] != chunk.lines[i - 1]) runs++;
+        }
+        out.writeInt(runs);
+        for (int i = 0; i < chunk.count;) {
+            int line = chunk.lines[i];
+            int length = 0;
+            while (i < chunk.count && chunk.lines[i] == line) {
+                i++;
+                length++;
+            }
+            out.writeInt(line);
+            out.writeInt(length);
+        }
+
+        out.writeInt(chunk.constants.size());
+        for (int i = 0; i < chunk.constants.size(); i++) {
+            writeConstant(out, chunk.constants.get(i));
+        }
+    }
+
+    private static void writeConstant(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NIL);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double d) {
+            out.writeByte(TAG_NUMBER);
+            out.writeDouble(d);
+        } else if (value instanceof String s) {
+            out.writeByte(TAG_STRING);
+            writeString(out, s);
+        } else if (value instanceof Chunk fn) {
+            out.writeByte(TAG_FUNCTION);
+            writeChunk(out, fn);
+        } else {
+            throw new IOException("Can't serialize constant " + value + ".");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // the file is mapped rather than read, the page cache backs the buffer
+    static Chunk read(Path path) throws IOException, FormatError {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 6 || buffer.getInt() != MAGIC) {
+                throw new FormatError("Not a compiled Lox file.");
+            }
+            int version = buffer.getShort() & 0xffff;
+            // versions 2 to 4 only added opcodes, older files still run unless they hold arrays
+            if (version < 1 || version > VERSION) {
+                throw new FormatError("Unsupported .loxc version " + version + ".");
+            }
+            return readChunk(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new FormatError("Truncated or corrupt .loxc file.");
+        }
+    }
+
+    private static Chunk readChunk(ByteBuffer in) throws FormatError {
+        int nameLength = in.getInt();
+        String name = nameLength < 0 ? null : readString(in, nameLength);
+        int arity = in.get() & 0xff;
+        Chunk chunk = new Chunk(name, arity);
+        chunk.upvalueCount = in.getShort() & 0xffff;
+
+        int count = in.getInt();
+        chunk.code = new byte[count];
+        in.get(chunk.code);
+        chunk.lines = new int[count];
+        chunk.count = count;
+
+        int runs = in.getInt();
+        for (int i = 0, offset = 0; i < runs; i++) {
+            int line = in.getInt();
+            int length = in.getInt();
+            if (offset + length > count) throw new FormatError("Line table doesn't match the code.");
+            for (int j = 0; j < length; j++) {
+                chunk.lines[offset++] = line;
+            }
+        }
+
+        // indexes were fixed at compile time, so the pool is restored as is instead of re-deduplicated
+        int constants = in.getInt();
+        Object[] values = new Object[constants];
+        for (int i = 0; i < constants; i++) {
+            values[i] = readConstant(in);
+        }
+        chunk.constants.values = values;
+        chunk.constants.count = constants;
+        return chunk;
+    }
+
+    private static Object readConstant(ByteBuffer in) throws FormatError {
+        byte tag = in.get();
+        switch (tag) {
+            case TAG_NIL: return null;
+            case TAG_FALSE: return false;
+            case TAG_TRUE: return true;
+            case TAG_NUMBER: return Interpreter.box(in.getDouble());
+            case TAG_STRING: return readString(in, in.getInt());
+            case TAG_FUNCTION: return readChunk(in);
+            case TAG_LIST:
+                throw new FormatError("Array constants from an older version, compile the script again.");
+            default:
+                throw new FormatError("Unknown constant tag " + tag + ".");
+        }
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
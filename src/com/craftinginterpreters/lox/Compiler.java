@@ -0,0 +1,753 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// compiles the resolved Stmt/Expr tree into one Chunk per function for the VM
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // compile state of the function being emitted, chained to the enclosing one
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Chunk chunk;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, Chunk chunk, FunctionType type) {
+            this.enclosing = enclosing;
+            this.chunk = chunk;
+            this.type = type;
+            // slot 0 holds the callee, or the receiver inside methods
+            boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current = null;
+    private int line = 0;
+    private boolean hadError = false;
+    private final LoxContext context;
+
+    public Compiler(LoxContext context) {
+        this.context = context;
+    }
+
+    // returns null when the program can't be compiled, errors are reported through the context
+    public Chunk compile(List<Stmt> statements) {
+        current = new FunctionState(null, new Chunk(null, 0), FunctionType.SCRIPT);
+
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+
+        Chunk script = endFunction();
+        return hadError ? null : script;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk endFunction() {
+        Chunk chunk = current.chunk;
+        chunk.upvalueCount = current.upvalues.size();
+        chunk.trim();
+        current = current.enclosing;
+        return chunk;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current, new Chunk(stmt.name.lexeme, stmt.params.size()), type);
+        current = state;
+
+        beginScope();
+        for (Token param : stmt.params) {
+            addLocal(param);
+            markInitialized();
+        }
+
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        Chunk chunk = endFunction();
+
+        line = stmt.name.line;
+        emit(OP_CLOSURE);
+        emitShort(makeConstant(chunk));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0);
+            emit(upvalue.index);
+        }
+    }
+
+    // ---- scopes and variables ----
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emit(locals.get(locals.size() - 1).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == 256) {
+            error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    // a name declared twice in one scope shares its slot, like the Resolver does
+    private int localInCurrentScope(Token name) {
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth != -1 && local.depth < current.scopeDepth) break;
+            if (local.name.equals(name.lexeme)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveLocal(FunctionState state, Token name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            if (local.name.equals(name.lexeme)) {
+                if (local.depth == -1) {
+                    error(name, "Can't read local variable in its own initializer");
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() == 256) {
+            error(line, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void getVariable(Token name) {
+        line = name.line;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(OP_GET_LOCAL);
+            emit(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emit(OP_GET_UPVALUE);
+            emit(arg);
+        } else {
+            emit(OP_GET_GLOBAL);
+            emitShort(identifier(name));
+        }
+    }
+
+    private void setVariable(Token name) {
+        line = name.line;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(OP_SET_LOCAL);
+            emit(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emit(OP_SET_UPVALUE);
+            emit(arg);
+        } else {
+            emit(OP_SET_GLOBAL);
+            emitShort(identifier(name));
+        }
+    }
+
+    // declares `name` with the value on top of the stack
+    private void declareVariable(Token name, Runnable value) {
+        if (current.scopeDepth == 0) {
+            value.run();
+            line = name.line;
+            emit(OP_DEFINE_GLOBAL);
+            emitShort(identifier(name));
+            return;
+        }
+
+        int existing = localInCurrentScope(name);
+        if (existing != -1) {
+            value.run();
+            emit(OP_SET_LOCAL);
+            emit(existing);
+            emit(OP_POP);
+            return;
+        }
+
+        addLocal(name);
+        value.run();
+        markInitialized();
+    }
+
+    // ---- emitting ----
+
+    private void emit(int b) {
+        current.chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OP_GET_LOCAL);
+            emit(0);
+        } else {
+            emit(OP_NIL);
+        }
+        emit(OP_RETURN);
+    }
+
+    private void emitConstant(Object value) {
+        int index = current.chunk.addConst(value);
+        if (index < 256) {
+            emit(OP_CONST);
+            emit(index);
+        } else if (index < (1 << 24)) {
+            emit(OP_CONST_LONG);
+            emit((index >> 16) & 0xff);
+            emitShort(index & 0xffff);
+        } else {
+            error(line, "Too many constants in one chunk.");
+        }
+    }
+
+    private int makeConstant(Object value) {
+        int index = current.chunk.addConst(value);
+        if (index > 0xffff) {
+            error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private int identifier(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int emitJump(byte instruction) {
+        emit(instruction);
+        emit(0xff);
+        emit(0xff);
+        return current.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = current.chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            error(line, "Too much code to jump over.");
+        }
+        current.chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        current.chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OP_LOOP);
+        int offset = current.chunk.count - loopStart + 2;
+        if (offset > 0xffff) error(line, "Loop body too large.");
+        emitShort(offset);
+    }
+
+    private void error(Token token, String message) {
+        context.error(token, message);
+        hadError = true;
+    }
+
+    private void error(int line, String message) {
+        context.error(line, message);
+        hadError = true;
+    }
+
+    // ---- expressions ----
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER -> emit(OP_GREATER);
+            case GREATER_EQUAL -> emit(OP_GREATER_EQUAL);
+            case LESS -> emit(OP_LESS);
+            case LESS_EQUAL -> emit(OP_LESS_EQUAL);
+            case BANG_EQUAL -> { emit(OP_EQUAL); emit(OP_NOT); }
+            case EQUAL_EQUAL -> emit(OP_EQUAL);
+            case MINUS -> emit(OP_SUBTRACT);
+            case SLASH -> emit(OP_DIVIDE);
+            case STAR -> emit(OP_MULTIPLY);
+            case PLUS -> emit(OP_ADD);
+            default -> error(expr.operator, "Unknown binary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OP_NIL);
+        } else if (expr.value instanceof Boolean b) {
+            emit(b ? OP_TRUE : OP_FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitMultiLiteralExpr(Expr.MultiLiteral expr) {
+        for (Expr element : expr.elements) {
+            compile(element);
+        }
+        line = expr.bracket.line;
+        if (expr.elements.size() > 0xffff) {
+            error(line, "Too many elements in array literal.");
+        }
+        emit(OP_ARRAY);
+        emitShort(expr.elements.size());
+        return null;
+    }
+
+    @Override
+    public Void visitMapLiteralExpr(Expr.MapLiteral expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            compile(expr.keys.get(i));
+            compile(expr.values.get(i));
+        }
+        line = expr.brace.line;
+        if (expr.keys.size() > 0xffff) {
+            error(line, "Too many entries in map literal.");
+        }
+        emit(OP_MAP);
+        emitShort(expr.keys.size());
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS -> emit(OP_NEGATE);
+            case BANG -> emit(OP_NOT);
+            default -> error(expr.operator, "Unknown unary operator.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        getVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitGlobalVariableExpr(Expr.GlobalVariable expr) {
+        line = expr.name.line;
+        emit(OP_GET_GLOBAL);
+        emitShort(identifier(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment expr) {
+        compile(expr.value);
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emit(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emit(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+
+        int elseJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+        compile(expr.thenValue);
+        int endJump = emitJump(OP_JUMP);
+
+        patchJump(elseJump);
+        emit(OP_POP);
+        compile(expr.elseValue);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // obj.method(...) skips creating the bound method
+        if (expr.callee instanceof Expr.Get get) {
+            compile(get.Obj);
+            for (Expr arg : expr.args) {
+                compile(arg);
+            }
+            line = expr.paren.line;
+            emit(OP_INVOKE);
+            emitShort(identifier(get.name));
+            emit(expr.args.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        for (Expr arg : expr.args) {
+            compile(arg);
+        }
+        line = expr.paren.line;
+        emit(OP_CALL);
+        emit(expr.args.size());
+        return null;
+    }
+
+    @Override
+    public Void visitAnonymousFuncExpr(Expr.AnonymousFunc expr) {
+        function(expr.func, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get get) {
+        compile(get.Obj);
+        line = get.name.line;
+        emit(OP_GET_PROPERTY);
+        emitShort(identifier(get.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set set) {
+        compile(set.obj);
+        compile(set.value);
+        line = set.name.line;
+        emit(OP_SET_PROPERTY);
+        emitShort(identifier(set.name));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This aThis) {
+        getVariable(aThis.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitSubscriptExpr(Expr.Subscript subscript) {
+        compile(subscript.object);
+        compile(subscript.index);
+        line = subscript.bracket.line;
+        emit(OP_SUBSCRIPT);
+        return null;
+    }
+
+    @Override
+    public Void visitSubscriptSetExpr(Expr.SubscriptSet subscript) {
+        compile(subscript.object);
+        compile(subscript.index);
+        compile(subscript.value);
+        line = subscript.bracket.line;
+        emit(OP_SET_SUBSCRIPT);
+        return null;
+    }
+
+    // ---- statements ----
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expr);
+        emit(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expr);
+        emit(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name, () -> {
+            if (stmt.value != null) {
+                compile(stmt.value);
+            } else {
+                emit(OP_NIL);
+            }
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OP_JUMP);
+
+        patchJump(thenJump);
+        emit(OP_POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(OP_POP);
+
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        if (current.scopeDepth == 0) {
+            function(stmt, FunctionType.FUNCTION);
+            emit(OP_DEFINE_GLOBAL);
+            emitShort(identifier(stmt.name));
+            return null;
+        }
+
+        // initialized up front so the body can call itself
+        int existing = localInCurrentScope(stmt.name);
+        if (existing != -1) {
+            function(stmt, FunctionType.FUNCTION);
+            emit(OP_SET_LOCAL);
+            emit(existing);
+            emit(OP_POP);
+            return null;
+        }
+        addLocal(stmt.name);
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        Loop loop = current.loop;
+        if (loop == null) {
+            // same as the tree-walker: a break outside any loop ends the function like a bare
+            // return (an initializer still hands back its receiver) and stops the script at top level
+            emitReturn();
+            return null;
+        }
+
+        // drop the locals of the scopes being left, the loop end doesn't know about them
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth <= loop.scopeDepth) break;
+            emit(local.isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+        loop.breaks.add(emitJump(OP_JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+            return null;
+        }
+
+        // the callee takes over this frame, natives and classes fall through to the return.
+        // a method is bound with OP_GET_PROPERTY here rather than invoked
+        if (stmt.tailCall != null) {
+            Expr.Call call = stmt.tailCall;
+            compile(call.callee);
+            for (Expr arg : call.args) {
+                compile(arg);
+            }
+            line = call.paren.line;
+            emit(OP_TAIL_CALL);
+            emit(call.args.size());
+            emit(OP_RETURN);
+            return null;
+        }
+
+        compile(stmt.value);
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OP_POP);
+            emitReturn();
+        } else {
+            emit(OP_RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int name = identifier(stmt.name);
+        declareVariable(stmt.name, () -> {
+            emit(OP_CLASS);
+            emitShort(name);
+        });
+
+        getVariable(stmt.name);
+        if (stmt.superclass != null) {
+            getVariable(stmt.superclass.name);
+            emit(OP_INHERIT);
+        }
+
+        for (Stmt.Function method : stmt.funcs) {
+            FunctionType type = method.name.lexeme.equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            line = method.name.line;
+            emit(OP_METHOD);
+            emitShort(identifier(method.name));
+        }
+        emit(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitUseLibStmt(Stmt.UseLib useLib) {
+        line = useLib.name.line;
+        emit(OP_USE);
+        emitShort(makeConstant(useLib.resolveNamespace()));
+        emitShort(makeConstant(useLib.resolveFile()));
+        return null;
+    }
+}
@@ -1,100 +1,120 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class Environment {
 
+    final Environment enclosing;
 
+    // locals live in slots assigned by the Resolver. the global scope is indexed too, by the
+    // engine's GlobalSlots, with UNDEFINED in the slots of names not defined in this context.
+    // values only grows up to the highest slot this context defined, a slot past its end is
+    // as undefined as one holding UNDEFINED
+    private final Object[] slots;
+    private final GlobalSlots names;
+    private Object[] values;
 
-    static class EnvironmentStackTooMuchError extends RuntimeException {}
-
-    public static int innerEnvCount = 0;
-    final Environment enclosing;
+    private static final Object UNDEFINED = new Object();
+    private static final Object[] NO_VALUES = new Object[0];
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
-        innerEnvCount++;
+        this.slots = new Object[size];
+        this.names = null;
     }
 
     // the global scope
-    public Environment() {
+    Environment(GlobalSlots names) {
         this.enclosing = null;
+        this.slots = new Object[0];
+        this.names = names;
+        this.values = NO_VALUES;
     }
 
-    private final Map<String, Object> values = new HashMap<>();
-
-    public Object getAt(Integer distance, String name) {
-        return ancestor(distance).values.get(name);
+    public Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    private Environment ancestor(Integer distance) {
+    private Environment ancestor(int distance) {
         Environment env = this;
 
-        if ( distance > 0 ) {
-            for (int i = 0 ; i < distance; i++ ) {
-                env = env.enclosing;
-            }
+        for (int i = 0 ; i < distance; i++ ) {
+            env = env.enclosing;
         }
 
         return env;
     }
 
     public void debug() {
-        for (String a : values.keySet()) {
-            System.out.println(a);
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != UNDEFINED) System.out.println(names.name(i));
+            }
+        }
+        for (int i = 0; i < slots.length; i++) {
+            System.out.println("#" + i + " " + slots[i]);
         }
     }
 
     public void debug(int depth) {
-        for (String a : ancestor(depth).values.keySet()) {
-            System.out.println(a);
-        }
+        ancestor(depth).debug();
     }
 
-    public void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme , value);
+    public void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
+    void define(int slot, Object value) {
+        slots[slot] = value;
+    }
 
     void define(String name , Object value) {
-        values.put(name , value);
+        defineGlobal(names.slot(name), value);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    void defineGlobal(int slot, Object value) {
+        if (slot >= values.length) {
+            int size = values.length;
+            values = Arrays.copyOf(values, Math.max(slot + 1, size * 2));
+            Arrays.fill(values, size, values.length, UNDEFINED);
         }
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        values[slot] = value;
     }
 
-    Object getFromGlobal(Token name) {
-
-        if (enclosing != null) return enclosing.get(name);
+    // name-keyed access to the global scope for the VM and the Jit, which have no node to keep a slot
+    boolean isDefined(String name) {
+        int slot = names.lookup(name);
+        return slot >= 0 && slot < values.length && values[slot] != UNDEFINED;
+    }
 
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+    Object get(String name) {
+        int slot = names.lookup(name);
+        if (slot < 0 || slot >= values.length || values[slot] == UNDEFINED) return null;
+        return values[slot];
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    // null when the slot is not defined in this context
+    Object getGlobal(int slot) {
+        if (slot < 0 || slot >= values.length || values[slot] == UNDEFINED) return null;
+        return values[slot];
     }
 
-    public void assign(Token name, Object value) {
-        if ( values.containsKey( name.lexeme )) {
-            values.put( name.lexeme , value);
-            return;
+    // slot as interned by the Resolver, the name is only there for the error
+    Object getGlobal(int slot, Token name) {
+        if (slot < 0) slot = names.slot(name.lexeme);
+        Object value = slot < values.length ? values[slot] : UNDEFINED;
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
         }
+        return value;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    void assignGlobal(int slot, Token name, Object value) {
+        if (slot < 0) slot = names.slot(name.lexeme);
+        if (slot >= values.length || values[slot] == UNDEFINED) {
+            throw new RuntimeError(name , "Undefined variable '" + name.lexeme + "'.");
         }
-
-        throw new RuntimeError(name , "Undefined variable '" + name.lexeme + "'.");
+        values[slot] = value;
     }
 }
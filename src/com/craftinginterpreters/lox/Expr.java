@@ -1,6 +1,5 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
 import java.util.List;
 
 abstract public class Expr {
@@ -12,6 +11,7 @@ abstract public class Expr {
         R visitGroupingExpr(Grouping expr);
         R visitLiteralExpr(Literal expr);
         R visitMultiLiteralExpr(MultiLiteral expr);
+        R visitMapLiteralExpr(MapLiteral expr);
 
         R visitUnaryExpr(Unary expr);
 
@@ -33,14 +33,45 @@ abstract public class Expr {
         R visitThisExpr(This aThis);
 
         R visitSubscriptExpr(Subscript subscript);
+
+        R visitSubscriptSetExpr(SubscriptSet subscript);
+    }
+
+    // operands and other child nodes are not final: the Optimizer swaps them for simpler ones
+    // after resolution, the rewritten tree keeps the Resolver's annotations
+
+    // specializations of Binary, Call and Get, rewritten in place by the Interpreter from the
+    // types it observes. A node whose assumption fails falls back to GENERIC for good
+    enum State {
+        UNINITIALIZED,
+        NUMBER,      // Binary: both operands were numbers
+        STRING,      // Binary: string concatenation
+        FUNCTION,    // Call: callee is a LoxFunction
+        NATIVE,      // Call: callee is a native LoxCallable
+        CLASS,       // Call: callee is a LoxClass
+        MONOMORPHIC, // Get/Set: receiver always had the same Shape
+        POLYMORPHIC, // Get: a few receiver shapes, each cached
+        GENERIC
+    }
+
+    // a name the Resolver may bind to a local: a slot of the current frame when inFrame, otherwise
+    // a captured variable `slot` in the Environment `depth` hops up. depth stays -1 for globals,
+    // which are found at index `global` of the global Environment
+    abstract static class Local extends Expr {
+        int depth = -1;
+        int slot = -1;
+        boolean inFrame = false;
+        int global = -1;
     }
 
     static class Subscript extends Expr {
-        final Token name;
-        final Expr index;
+        Expr object;
+        final Token bracket;
+        Expr index;
 
-        public Subscript(Token name, Expr index) {
-            this.name = name;
+        public Subscript(Expr object, Token bracket, Expr index) {
+            this.object = object;
+            this.bracket = bracket;
             this.index = index;
         }
 
@@ -50,6 +81,25 @@ abstract public class Expr {
         }
     }
 
+    static class SubscriptSet extends Expr {
+        Expr object;
+        final Token bracket;
+        Expr index;
+        Expr value;
+
+        public SubscriptSet(Expr object, Token bracket, Expr index, Expr value) {
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSubscriptSetExpr(this);
+        }
+    }
+
     static class AnonymousFunc extends Expr {
         final Stmt.Function func;
 
@@ -66,10 +116,12 @@ abstract public class Expr {
 
 
     static class Call extends Expr {
-        final Expr callee;
+        Expr callee;
         final Token paren;
         final List<Expr> args;
 
+        State state = State.UNINITIALIZED;
+
         public Call(Expr callee, Token paren, List<Expr> args) {
 
             this.callee = callee;
@@ -85,10 +137,12 @@ abstract public class Expr {
 
 
     static class Binary extends Expr {
-        final Expr left;
-        final Expr right;
+        Expr left;
+        Expr right;
 
         final Token operator;
+
+        State state = State.UNINITIALIZED;
         public Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -102,7 +156,7 @@ abstract public class Expr {
     }
 
     static class Grouping extends Expr {
-        final Expr expr;
+        Expr expr;
 
         public Grouping(Expr expr) {
             this.expr = expr;
@@ -128,11 +182,14 @@ abstract public class Expr {
         }
     }
 
+    // [a, b, ...], a new array every time it is evaluated
     static class MultiLiteral extends Expr {
-        final ArrayList<Object> values;
+        final Token bracket;
+        final List<Expr> elements;
 
-        public MultiLiteral(ArrayList<Object> values) {
-            this.values = values;
+        public MultiLiteral(Token bracket, List<Expr> elements) {
+            this.bracket = bracket;
+            this.elements = elements;
         }
 
         @Override
@@ -141,9 +198,27 @@ abstract public class Expr {
         }
     }
 
+    // {key: value, ...}, a new map every time it is evaluated
+    static class MapLiteral extends Expr {
+        final Token brace;
+        final List<Expr> keys;
+        final List<Expr> values;
+
+        public MapLiteral(Token brace, List<Expr> keys, List<Expr> values) {
+            this.brace = brace;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitMapLiteralExpr(this);
+        }
+    }
+
     static class Unary extends Expr {
         final Token operator;
-        final Expr right;
+        Expr right;
 
         public Unary(Token operator, Expr right) {
             this.operator = operator;
@@ -156,7 +231,7 @@ abstract public class Expr {
         }
     }
 
-    static class Variable extends Expr {
+    static class Variable extends Local {
         final Token name;
 
         public Variable(Token value) {
@@ -169,10 +244,10 @@ abstract public class Expr {
         }
     }
 
-    static class Assignment extends Expr {
+    static class Assignment extends Local {
 
         final Token name;
-        final Expr value;
+        Expr value;
 
         public Assignment(Token name, Expr value) {
             this.name = name;
@@ -187,6 +262,8 @@ abstract public class Expr {
 
     public static class GlobalVariable extends Expr {
         final Token name;
+        // index in the global Environment, set by the Resolver
+        int global = -1;
 
         public GlobalVariable(Token name) {
             this.name = name;
@@ -201,9 +278,9 @@ abstract public class Expr {
 
     public static class Logical extends Expr {
 
-        final Expr left;
+        Expr left;
         final Token operator;
-        final Expr right;
+        Expr right;
 
         public Logical(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -219,9 +296,9 @@ abstract public class Expr {
 
     static class Ternary extends Expr {
 
-        final Expr condition;
-        final Expr thenValue;
-        final Expr elseValue;
+        Expr condition;
+        Expr thenValue;
+        Expr elseValue;
 
         public Ternary(Expr condition, Expr thenValue, Expr elseValue) {
 
@@ -238,14 +315,38 @@ abstract public class Expr {
 
     static class Get extends Expr {
 
-        final Expr Obj;
+        Expr Obj;
         final Token name;
 
+        State state = State.UNINITIALIZED;
+
+        // inline cache: receiver shapes seen here and the field slot or method the name resolved to
+        static final int POLYMORPHIC_LIMIT = 4;
+        Shape[] cachedShapes = null;
+        int[] cachedSlots = null;
+        LoxFunction[] cachedMethods = null;
+        int cacheSize = 0;
+
+        // bound-method cache for the last receiver
+        LoxInstance boundReceiver = null;
+        LoxFunction boundMethod = null;
+
         public Get(Expr obj, Token name) {
             Obj = obj;
             this.name = name;
         }
 
+        // shapes and receivers belong to one run, a cached tree forgets them before it is reused
+        void resetCache() {
+            state = State.UNINITIALIZED;
+            cachedShapes = null;
+            cachedSlots = null;
+            cachedMethods = null;
+            cacheSize = 0;
+            boundReceiver = null;
+            boundMethod = null;
+        }
+
         @Override
         <R> R accept(Visitor<R> visitor) {
             return visitor.visitGetExpr(this);
@@ -253,9 +354,15 @@ abstract public class Expr {
     }
 
     static class Set extends Expr {
-        final Expr obj;
+        Expr obj;
         final Token name;
-        final Expr value;
+        Expr value;
+
+        // inline cache: the receiver shape seen here, and the shape after the store when it adds the field
+        State state = State.UNINITIALIZED;
+        Shape cachedShape = null;
+        Shape cachedNext = null;
+        int cachedSlot = -1;
 
         public Set(Expr obj, Token name, Expr value) {
             this.obj = obj;
@@ -263,13 +370,20 @@ abstract public class Expr {
             this.value = value;
         }
 
+        void resetCache() {
+            state = State.UNINITIALIZED;
+            cachedShape = null;
+            cachedNext = null;
+            cachedSlot = -1;
+        }
+
         @Override
         <R> R accept(Visitor<R> visitor) {
             return visitor.visitSetExpr(this);
         }
     }
 
-    static class This extends Expr {
+    static class This extends Local {
         final Token keyword;
 
         public This(Token keyword) {
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// global names interned to indexes, one table per engine. the Resolver stores the index on every
+// node that reads or writes a global, so one tree cached by the engine finds its globals at the
+// same index in the global Environment of any context. an index never changes meaning, redefining
+// a global only stores into its slot and there is nothing cached to invalidate
+final class GlobalSlots {
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    // slot -> name, a name is added under the lock so its index is the slot it was given
+    private final List<String> names = new ArrayList<>();
+
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        return slots.computeIfAbsent(name, n -> {
+            synchronized (names) {
+                names.add(n);
+                return names.size() - 1;
+            }
+        });
+    }
+
+    // -1 when no tree or context used the name yet
+    int lookup(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    String name(int slot) {
+        synchronized (names) {
+            return slot < names.size() ? names.get(slot) : null;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,23 +9,40 @@ import java.util.function.Function;
 
 public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
 
-    public static class BreakFromBlock extends RuntimeException {}
-    class Return extends RuntimeException {
-        final Object value;
+    // how the last statement completed, break and return set it instead of throwing
+    // every statement list stops on anything but NORMAL, loops and calls consume their own kind
+    enum Completion { NORMAL, BREAK, RETURN }
+    Completion completion = Completion.NORMAL;
+    Object returnValue = null;
 
-        Return(Object value) {
-            super(null, null, false, false);
-            this.value = value;
-        }
-    }
+    // a return in tail position leaves TAIL_CALL as its value and the call it wants made next,
+    // LoxFunction.call makes it once the returning frame is gone
+    static final Object TAIL_CALL = new Object();
+    LoxFunction tailCallee = null;
+    List<Object> tailArgs = null;
+
+    final Environment globals;
+    private Environment environment;
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    // frames of the active calls, holding the locals no closure captures. fp is the base of the
+    // running frame and sp its end, a call pushes the next frame at sp
+    Object[] stack = new Object[256];
+    int fp = 0;
+    int sp = 0;
 
-    private final Map<Expr, Integer> locals = new HashMap<>();
     private Stmt current = null;
 
-    Interpreter() {
+    // set when hot functions should be compiled to JVM bytecode
+    Jit jit = null;
+
+    // owner of the streams and error state this interpreter reports to
+    final LoxContext context;
+
+    Interpreter(LoxContext context) {
+        this.context = context;
+        this.globals = new Environment(context.engine().globals);
+        this.environment = globals;
+
         globals.define("clock", new LoxCallable() {
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
@@ -44,9 +62,9 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
                 for (Object arg : args) {
-                    System.out.print(stringify(arg) + " ");
+                    interpreter.context.out.print(stringify(arg) + " ");
                 }
-                System.out.println();
+                interpreter.context.out.println();
                 return null;
             };
 
@@ -60,7 +78,7 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
         });
 
         
-        String[] libs = {"math" , "io" , "str"};
+        String[] libs = {"math" , "io" , "str" , "array" , "map"};
         for (String lib : libs) {
             try {
                 Class<?> clazz = Class.forName("com.craftinginterpreters.lib.std$" + lib);
@@ -69,33 +87,41 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
                     globals.define( c.getSimpleName() , instance);
                 }
             } catch (Exception e) {
-                System.err.println("Could not locate target file under library dir: " + lib);
+                context.err.println("Could not locate target file under library dir: " + lib);
             }
         }
     }
 
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr , depth);
+    // natives outside the package reach their context through here
+    public LoxContext context() {
+        return context;
     }
 
-
-    void interpret(List<Stmt> stmts) {
+    void interpret(List<Stmt> stmts, int frameSize) {
+        fp = 0;
+        sp = 0;
+        pushFrame(frameSize);
         try {
             for (Stmt s : stmts) {
-                 try {
-                     s.accept(this);
-                 } catch (BreakFromBlock e) {
-                     return;
-                 }
+                s.accept(this);
+                // a break outside any loop ends the script
+                if (completion != Completion.NORMAL) {
+                    completion = Completion.NORMAL;
+                    return;
+                }
             }
         }
         catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            context.runtimeError(error);
         }
     }
 
     public String stringify(Object obj) {
+        return format(obj);
+    }
+
+    static String format(Object obj) {
         if (obj == null) return "nil";
 
         if (obj instanceof Double) {
@@ -111,10 +137,130 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
+        switch (expr.state) {
+            case STRING: {
+                Object left = evaluate(expr.left);
+                Object right = evaluate(expr.right);
+                if (left instanceof String l && right instanceof String r) return l + r;
+                return deoptimize(expr, left, right);
+            }
+            case GENERIC:
+                return binaryOp(expr, evaluate(expr.left), evaluate(expr.right));
+        }
 
-        Object right = evaluate(expr.right);
+        // UNINITIALIZED and NUMBER nodes try the unboxed path first
+        TokenType type = expr.operator.type;
+        if (isArithmetic(type)) {
+            double value = evaluateDouble(expr);
+            if (boxed != NUMBER) return takeBoxed();
+            return box(value);
+        }
+
+        double left = evaluateDouble(expr.left);
+        if (boxed != NUMBER) return deoptimize(expr, takeBoxed(), evaluate(expr.right));
+        double right = evaluateDouble(expr.right);
+        if (boxed != NUMBER) return deoptimize(expr, box(left), takeBoxed());
+        expr.state = Expr.State.NUMBER;
+
+        switch (type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            // same as Double.equals
+            case EQUAL_EQUAL: return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+            case BANG_EQUAL: return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    private static boolean isArithmetic(TokenType type) {
+        return type == TokenType.MINUS || type == TokenType.SLASH || type == TokenType.STAR || type == TokenType.PLUS;
+    }
+
+    // the operands didn't match the node's specialization: pick one from what was seen,
+    // or give up on specializing if the node was already specialized
+    private Object deoptimize(Expr.Binary expr, Object left, Object right) {
+        if (expr.state != Expr.State.UNINITIALIZED) {
+            expr.state = Expr.State.GENERIC;
+        } else if (left instanceof Double && right instanceof Double) {
+            expr.state = Expr.State.NUMBER;
+        } else if (left instanceof String && right instanceof String && expr.operator.type == TokenType.PLUS) {
+            expr.state = Expr.State.STRING;
+        } else {
+            expr.state = Expr.State.GENERIC;
+        }
+        return binaryOp(expr, left, right);
+    }
+
+    // marks `boxed` as empty, any other value is a non-number met by evaluateDouble
+    private static final Object NUMBER = new Object();
+    private Object boxed = NUMBER;
+
+    private Object takeBoxed() {
+        Object value = boxed;
+        boxed = NUMBER;
+        return value;
+    }
+
+    // evaluates without boxing the intermediate results of arithmetic chains.
+    // When a value turns out not to be a number it is parked in `boxed` and the
+    // caller finishes on the generic path, so errors and string concat behave as before
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Literal literal && literal.value instanceof Double value) {
+            return value;
+        }
 
+        if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expr);
+        }
+
+        if (expr instanceof Expr.Binary binary && isArithmetic(binary.operator.type)
+                && (binary.state == Expr.State.UNINITIALIZED || binary.state == Expr.State.NUMBER)) {
+            double left = evaluateDouble(binary.left);
+            if (boxed != NUMBER) return unbox(deoptimize(binary, takeBoxed(), evaluate(binary.right)));
+            double right = evaluateDouble(binary.right);
+            if (boxed != NUMBER) return unbox(deoptimize(binary, box(left), takeBoxed()));
+            binary.state = Expr.State.NUMBER;
+
+            switch (binary.operator.type) {
+                case MINUS: return left - right;
+                case SLASH: return left / right;
+                case STAR: return left * right;
+                default: return left + right;
+            }
+        }
+
+        return unbox(evaluate(expr));
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double number) return number;
+        boxed = value;
+        return 0;
+    }
+
+    // small integers (loop counters, indexes) share their boxes
+    private static final int BOX_CACHE_LOW = -128;
+    private static final Double[] boxCache = new Double[1024 - BOX_CACHE_LOW];
+
+    static {
+        for (int i = 0; i < boxCache.length; i++) {
+            boxCache[i] = (double) (i + BOX_CACHE_LOW);
+        }
+    }
+
+    static Double box(double value) {
+        int i = (int) value;
+        if (i == value && i >= BOX_CACHE_LOW && i < 1024 && (i != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+            return boxCache[i - BOX_CACHE_LOW];
+        }
+        return value;
+    }
+
+    private Object binaryOp(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator , left , right);
@@ -132,16 +278,16 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
             case EQUAL_EQUAL: return isEqual(left, right);
             case MINUS:
                 checkNumberOperand(expr.operator ,  right);
-                return (double)left - (double)right;
+                return box((double)left - (double)right);
             case SLASH:
                 checkNumberOperands(expr.operator , left , right);
-                return (double)left / (double)right;
+                return box((double)left / (double)right);
             case STAR:
                 checkNumberOperands(expr.operator , left , right);
-                return (double)left * (double)right;
+                return box((double)left * (double)right);
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
+                    return box((double)left + (double)right);
                 }
 
                 if (left instanceof String && right instanceof String) {
@@ -181,7 +327,21 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
 
     @Override
     public Object visitMultiLiteralExpr(Expr.MultiLiteral expr) {
-        return expr.values;
+        Object[] values = new Object[expr.elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(expr.elements.get(i));
+        }
+        return new LoxArray(values);
+    }
+
+    @Override
+    public Object visitMapLiteralExpr(Expr.MapLiteral expr) {
+        LoxMap map = new LoxMap(expr.keys.size());
+        for (int i = 0; i < expr.keys.size(); i++) {
+            Object key = evaluate(expr.keys.get(i));
+            map.put(key, evaluate(expr.values.get(i)));
+        }
+        return map;
     }
 
     @Override
@@ -204,30 +364,31 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
         return lookUpVariable(expr.name , expr);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-
-        if (distance != null) {
-            return environment.getAt(distance , name.lexeme);
+    private Object lookUpVariable(Token name, Expr.Local expr) {
+        if (expr.inFrame) {
+            return stack[fp + expr.slot];
+        } else if (expr.depth >= 0) {
+            return environment.getAt(expr.depth , expr.slot);
         } else {
-            return globals.get(name);
+            return globals.getGlobal(expr.global, name);
         }
     }
 
     @Override
     public Object visitGlobalVariableExpr(Expr.GlobalVariable expr) {
-        return environment.getFromGlobal(expr.name);
+        return globals.getGlobal(expr.global, expr.name);
     }
 
     @Override
     public Object visitAssignmentExpr(Expr.Assignment expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null ) {
-            environment.assignAt(distance , expr.name , value);
+        if (expr.inFrame) {
+            stack[fp + expr.slot] = value;
+        } else if (expr.depth >= 0 ) {
+            environment.assignAt(expr.depth , expr.slot , value);
         } else {
-            globals.assign(expr.name , value);
+            globals.assignGlobal(expr.global, expr.name , value);
         }
         return value;
     }
@@ -257,68 +418,150 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> args = new ArrayList<>(expr.args.stream().map(this::evaluate).toList());
+        List<Object> args = new ArrayList<>(expr.args.size());
+        for (Expr arg : expr.args) {
+            args.add(evaluate(arg));
+        }
+
+        // functions and natives skip the instanceof chain below once the site has settled
+        switch (expr.state) {
+            case FUNCTION:
+                if (callee instanceof LoxFunction function) return callFunction(expr, function, args);
+                expr.state = Expr.State.GENERIC;
+                break;
+            case NATIVE:
+                if (callee instanceof LoxCallable function && !(callee instanceof LoxFunction)
+                        && !(callee instanceof LoxClass)) {
+                    return callFunction(expr, function, args);
+                }
+                expr.state = Expr.State.GENERIC;
+                break;
+            case CLASS:
+                if (!(callee instanceof LoxClass)) expr.state = Expr.State.GENERIC;
+                break;
+            case UNINITIALIZED:
+                if (callee instanceof LoxFunction) {
+                    expr.state = Expr.State.FUNCTION;
+                } else if (callee instanceof LoxClass) {
+                    expr.state = Expr.State.CLASS;
+                } else if (callee instanceof LoxCallable) {
+                    expr.state = Expr.State.NATIVE;
+                }
+                break;
+        }
 
         if (!(callee instanceof LoxCallable function)) {
             throw new RuntimeError(expr.paren,
                     "Can only call functions and classes.");
         }
 
+        return callFunction(expr, function, args);
+    }
+
+    private Object callFunction(Expr.Call expr, LoxCallable function, List<Object> args) {
         if (function.arity() >= 0 && args.size() != function.arity() ) {
             throw new RuntimeError(expr.paren, "Expected " +
                     function.arity() + " arguments but got " +
                     args.size() + ".");
         }
 
-        Object object = function.call(this , args);
-
-        if ( object instanceof LoxInstance c) {
-            try {
-                for(LoxFunction func : ((LoxClass) callee).superclass.funcs.values()) {
-                    c.set(func.funName(), new LoxFunction( func.declaration , c.env ,  func.funName().equals("init")));
-                }
-
-                for(LoxFunction func : ((LoxClass) callee).funcs.values()) {
-                    c.set(func.funName(), new LoxFunction( func.declaration , c.env ,  func.funName().equals("init")));
-                }
-
-                return c;
-
-            } catch(ClassCastException ignored) {}
-        }
-
-
-
-        return object;
+        return function.call(this , args);
     }
 
     @Override
     public Object visitAnonymousFuncExpr(Expr.AnonymousFunc expr) {
-        return new LoxFunction( new Stmt.Function( expr.func.name , expr.func.params , expr.func.body) , this.globals , false );
+        return new LoxFunction( expr.func , environment , false );
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.Obj);
-        if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(expr.name,
+                    "Only instances have properties.");
         }
 
-        throw new RuntimeError(expr.name,
-                "Only instances have properties.");
+        Shape shape = instance.shape;
+        for (int i = 0; i < expr.cacheSize; i++) {
+            if (expr.cachedShapes[i] == shape) {
+                LoxFunction method = expr.cachedMethods[i];
+                if (method == null) return instance.values[expr.cachedSlots[i]];
+                return bindCached(expr, instance, method);
+            }
+        }
+
+        // miss: the shape decides between a field slot and a class method, remember which one
+        if (expr.state != Expr.State.GENERIC) {
+            int slot = shape.lookup(expr.name.lexeme);
+            LoxFunction method = slot < 0 ? instance.klass.findMethod(expr.name.lexeme) : null;
+            if (slot >= 0 || method != null) {
+                if (expr.cacheSize == Expr.Get.POLYMORPHIC_LIMIT) {
+                    expr.state = Expr.State.GENERIC;
+                    expr.cachedShapes = null;
+                    expr.cachedSlots = null;
+                    expr.cachedMethods = null;
+                    expr.cacheSize = 0;
+                } else {
+                    if (expr.cachedShapes == null) {
+                        expr.cachedShapes = new Shape[Expr.Get.POLYMORPHIC_LIMIT];
+                        expr.cachedSlots = new int[Expr.Get.POLYMORPHIC_LIMIT];
+                        expr.cachedMethods = new LoxFunction[Expr.Get.POLYMORPHIC_LIMIT];
+                    }
+                    expr.cachedShapes[expr.cacheSize] = shape;
+                    expr.cachedSlots[expr.cacheSize] = slot;
+                    expr.cachedMethods[expr.cacheSize] = method;
+                    expr.cacheSize++;
+                    expr.state = expr.cacheSize == 1 ? Expr.State.MONOMORPHIC : Expr.State.POLYMORPHIC;
+                }
+                if (method == null) return instance.values[slot];
+                return bindCached(expr, instance, method);
+            }
+        }
+
+        return instance.get(expr.name);
+    }
+
+    // repeated obj.method() on the same receiver reuses the bound method
+    private LoxFunction bindCached(Expr.Get expr, LoxInstance instance, LoxFunction method) {
+        if (expr.boundReceiver == instance && expr.boundMethod.declaration == method.declaration) {
+            return expr.boundMethod;
+        }
+        expr.boundReceiver = instance;
+        expr.boundMethod = method.bind(instance);
+        return expr.boundMethod;
     }
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         Object obj = evaluate(expr.obj);
 
-        if (!(obj instanceof LoxInstance)) {
+        if (!(obj instanceof LoxInstance instance)) {
             throw new RuntimeError(expr.name,
                     "Only instances have fields.");
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)obj).set(expr.name, value);
+
+        Shape shape = instance.shape;
+        if (shape == expr.cachedShape) {
+            if (expr.cachedNext != null) instance.grow(expr.cachedNext);
+            instance.values[expr.cachedSlot] = value;
+            return value;
+        }
+
+        if (expr.state == Expr.State.UNINITIALIZED) {
+            int slot = shape.lookup(expr.name.lexeme);
+            expr.state = Expr.State.MONOMORPHIC;
+            expr.cachedShape = shape;
+            expr.cachedNext = slot < 0 ? shape.with(expr.name.lexeme) : null;
+            expr.cachedSlot = slot < 0 ? shape.size : slot;
+        } else {
+            expr.state = Expr.State.GENERIC;
+            expr.cachedShape = null;
+            expr.cachedNext = null;
+        }
+
+        instance.set(expr.name, value);
         return value;
     }
 
@@ -329,12 +572,40 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
 
     @Override
     public Object visitSubscriptExpr(Expr.Subscript subscript) {
-        ArrayList<Object> array = (ArrayList<Object>) environment.get(subscript.name);
-        try {
-            return stringify(array.get(Integer.parseInt(stringify(evaluate(subscript.index)))));
-        } catch (IndexOutOfBoundsException e) {
-            throw new RuntimeError( subscript.name , "index out of bound");
+        Object object = evaluate(subscript.object);
+        Object index = evaluate(subscript.index);
+        // a missing key reads as nil
+        if (object instanceof LoxMap map) return map.get(index);
+        LoxArray array = checkArray(subscript.bracket, object);
+        return array.get(checkIndex(subscript.bracket, array, index));
+    }
+
+    @Override
+    public Object visitSubscriptSetExpr(Expr.SubscriptSet subscript) {
+        Object object = evaluate(subscript.object);
+        Object index = evaluate(subscript.index);
+        Object value = evaluate(subscript.value);
+        if (object instanceof LoxMap map) {
+            map.put(index, value);
+            return value;
+        }
+        LoxArray array = checkArray(subscript.bracket, object);
+        array.set(checkIndex(subscript.bracket, array, index), value);
+        return value;
+    }
+
+    private LoxArray checkArray(Token bracket, Object object) {
+        if (object instanceof LoxArray array) return array;
+        throw new RuntimeError(bracket, "Only arrays and maps can be subscripted.");
+    }
+
+    private int checkIndex(Token bracket, LoxArray array, Object index) {
+        if (!(index instanceof Double number)) {
+            throw new RuntimeError(bracket, "Array index must be a number.");
         }
+        int i = array.index(number);
+        if (i < 0) throw new RuntimeError(bracket, "Array index out of bounds.");
+        return i;
     }
 
     private void checkNumberOperand(Token op , Object operand ) {
@@ -384,7 +655,7 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
             value = evaluate(stmt.value);
         }
 
-        environment.define(stmt.name.lexeme , value);
+        define(stmt.slot , stmt.global , stmt.captured , stmt.name , value);
 
         return null;
 
@@ -393,7 +664,8 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
 
-        executeBlock(stmt.statements , new Environment(environment));
+        // a block only needs an Environment when a closure captures one of its locals
+        executeBlock(stmt.statements , stmt.envSize == 0 ? environment : new Environment(environment , stmt.envSize));
 
         return null;
     }
@@ -410,31 +682,60 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        try {
-            while (isTrusty(evaluate(stmt.condition))) {
-                execute(stmt.body);
+        while (isTrusty(evaluate(stmt.condition))) {
+            context.checkCancelled();
+            execute(stmt.body);
+            if (completion != Completion.NORMAL) {
+                if (completion == Completion.BREAK) completion = Completion.NORMAL;
+                break;
             }
-        } catch (BreakFromBlock ignored) {}
+        }
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        globals.define(stmt.name.lexeme , new LoxFunction(stmt, environment,false));
+        define(stmt.slot , stmt.global , stmt.captured , stmt.name , new LoxFunction(stmt, environment,false));
         return null;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) throws BreakFromBlock {
-        throw new Interpreter.BreakFromBlock();
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        completion = Completion.BREAK;
+        return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) throws BreakFromBlock {
-        Object value = null;
-        if (stmt.value != null ) value = evaluate(stmt.value);
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall != null) {
+            returnValue = tailCall(stmt.tailCall);
+        } else {
+            returnValue = stmt.value == null ? null : evaluate(stmt.value);
+        }
+        completion = Completion.RETURN;
+        return null;
+    }
+
+    // calls to LoxFunctions are left to the trampoline in LoxFunction.call, anything else is made here
+    private Object tailCall(Expr.Call call) {
+        Object callee = evaluate(call.callee);
+
+        List<Object> args = new ArrayList<>(call.args.size());
+        for (Expr arg : call.args) {
+            args.add(evaluate(arg));
+        }
 
-        throw new Return(value);
+        if (callee instanceof LoxFunction function && function.arity() == args.size()) {
+            if (call.state == Expr.State.UNINITIALIZED) call.state = Expr.State.FUNCTION;
+            tailCallee = function;
+            tailArgs = args;
+            return TAIL_CALL;
+        }
+        if (!(callee instanceof LoxCallable function)) {
+            throw new RuntimeError(call.paren,
+                    "Can only call functions and classes.");
+        }
+        return callFunction(call, function, args);
     }
 
     @Override
@@ -450,43 +751,75 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
                 throw new RuntimeError(stmt.superclass.name,
                         "Superclass must be a class.");
             }
-
-            map.put("init" , ((LoxClass) superclass).funcs.get("init"));
-
         }
 
 
-        environment.define( stmt.name.lexeme , null );
+        define(stmt.slot , stmt.global , stmt.captured , stmt.name , null );
         for (Stmt.Function f: stmt.funcs ) {
-            map.put( f.name.lexeme , new LoxFunction(f, globals, f.name.lexeme.equals("init")));
+            map.put( f.name.lexeme , new LoxFunction(f, environment, f.name.lexeme.equals("init")));
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme,
                 (LoxClass) superclass, map);
-        environment.assign(stmt.name, klass);
+        define(stmt.slot , stmt.global , stmt.captured , stmt.name , klass);
 
         return null;
     }
 
     @Override
     public Void visitUseLibStmt(Stmt.UseLib useLib) {
+        useLib(useLib.resolveNamespace() , useLib.resolveFile());
+        return null;
+    }
+
+    void useLib(String namespace, String file) {
         try {
-            Class<?> clazz = Class.forName("com.craftinginterpreters.lib." + useLib.resolveNamespace() + useLib.resolveFile());
+            Class<?> clazz = Class.forName("com.craftinginterpreters.lib." + namespace + file);
             LoxCallable instance = (LoxCallable) clazz.newInstance();
-            globals.define( useLib.resolveFile() , instance);
+            globals.define( file , instance);
         } catch (Exception e) {
-            System.err.println("Could not found target file under library: " + useLib.resolveNamespace() + useLib.resolveFile());
+            context.err.println("Could not found target file under library: " + namespace + file);
         }
-        return null;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) throws BreakFromBlock {
+    // locals go to the slot picked by the Resolver, in the frame unless captured; anything else is a global
+    private void define(int slot, int global, boolean captured, Token name, Object value) {
+        if (slot < 0) {
+            if (global >= 0) {
+                globals.defineGlobal(global, value);
+            } else {
+                globals.define(name.lexeme , value);
+            }
+        } else if (captured) {
+            environment.define(slot , value);
+        } else {
+            stack[fp + slot] = value;
+        }
+    }
+
+    void pushFrame(int size) {
+        fp = sp;
+        sp = fp + size;
+        if (sp > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(sp, stack.length * 2));
+        }
+    }
+
+    // clears the callee's slots so the stack doesn't keep dead values reachable
+    void popFrame(int callerFp, int callerSp) {
+        Arrays.fill(stack, callerSp, sp, null);
+        fp = callerFp;
+        sp = callerSp;
+    }
+
+    void executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt s : statements) {
                 execute(s);
+                if (completion != Completion.NORMAL) break;
             }
 
         }
@@ -495,7 +828,7 @@ public class Interpreter implements Expr.Visitor<Object> , Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt statements) throws BreakFromBlock {
+    private void execute(Stmt statements) {
         current = statements;
         statements.accept(this);
     }
@@ -0,0 +1,558 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// second tier of the tree-walker: once a global function has been called `threshold` times it is
+// translated to JVM bytecode and loaded as a hidden class, so HotSpot compiles it like Java code.
+// Only pure numeric functions are translated (number params and locals, arithmetic, comparisons,
+// if / while / break / return and calls to itself), anything else stays on the tree-walker.
+public class Jit {
+
+    // implemented by every generated class, unboxes the arguments and calls the static body
+    interface Entry {
+        Object call(List<Object> args);
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    final int threshold;
+    private final Environment globals;
+    private final List<String> report = new ArrayList<>();
+
+    public Jit(Environment globals, int threshold) {
+        this.globals = globals;
+        this.threshold = threshold;
+    }
+
+    // returns null when the function can't be compiled, it then keeps running on the tree-walker
+    Entry compile(LoxFunction function) {
+        Stmt.Function declaration = function.declaration;
+        String name = declaration.name.lexeme + "/" + declaration.params.size();
+        try {
+            if (declaration.global < 0 || globals.getGlobal(declaration.global) != function) {
+                throw new Unsupported("not a global function");
+            }
+
+            byte[] bytes = new Translator(declaration).translate();
+            Class<?> clazz = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            Entry entry = (Entry) clazz.getDeclaredConstructor().newInstance();
+            report.add("compiled " + name + " after " + threshold + " calls");
+            return entry;
+        } catch (Unsupported e) {
+            report.add("skipped " + name + ": " + e.getMessage());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            report.add("failed " + name + ": " + e);
+        }
+        return null;
+    }
+
+    // compiled code assumes number arguments and calls itself directly,
+    // so the global must still be bound to the same function. the slot the Resolver gave the
+    // declaration is checked, not the name, to keep hashing off the call path
+    boolean canEnter(LoxFunction function, List<Object> args) {
+        for (Object arg : args) {
+            if (!(arg instanceof Double)) return false;
+        }
+        return globals.getGlobal(function.declaration.global) == function;
+    }
+
+    public void report(PrintStream out) {
+        for (String line : report) {
+            out.println("[jit] " + line);
+        }
+    }
+
+    // ---- Stmt.Function -> class file ----
+
+    private static class Translator {
+        private final Stmt.Function function;
+        private final String className;
+        private final String runDescriptor;
+        private final ConstantPool cp = new ConstantPool();
+
+        private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+        private final Deque<Label> loops = new ArrayDeque<>();
+        private int nextLocal = 0;
+        // start of the body, a tail call to itself jumps back here
+        private final Label top = new Label();
+
+        Translator(Stmt.Function function) {
+            this.function = function;
+            this.className = "com/craftinginterpreters/lox/Jit$" + function.name.lexeme.replaceAll("[^A-Za-z0-9_]", "_");
+            this.runDescriptor = "(" + "D".repeat(function.params.size()) + ")D";
+        }
+
+        byte[] translate() {
+            if (!returns(function.body)) {
+                throw new Unsupported("may return nil");
+            }
+
+            Code run = new Code();
+            Map<String, Integer> params = new HashMap<>();
+            for (Token param : function.params) {
+                params.put(param.lexeme, nextLocal);
+                nextLocal += 2;
+            }
+            scopes.push(params);
+            run.place(top);
+            for (Stmt stmt : function.body) {
+                stmt(run, stmt);
+            }
+            // never reached, every path returned already
+            run.op(0x0e, 2); // dconst_0
+            run.op(0xaf, -2); // dreturn
+
+            return assemble(run, bridge(), nextLocal);
+        }
+
+        // a statement list returns a number on every path
+        private boolean returns(List<Stmt> statements) {
+            for (Stmt stmt : statements) {
+                if (returns(stmt)) return true;
+            }
+            return false;
+        }
+
+        private boolean returns(Stmt stmt) {
+            if (stmt instanceof Stmt.Return) return true;
+            if (stmt instanceof Stmt.Block block) return returns(block.statements);
+            if (stmt instanceof Stmt.If ifStmt) {
+                return ifStmt.elseBranch != null && returns(ifStmt.thenBranch) && returns(ifStmt.elseBranch);
+            }
+            return false;
+        }
+
+        private void stmt(Code code, Stmt stmt) {
+            if (stmt instanceof Stmt.Block block) {
+                scopes.push(new HashMap<>());
+                for (Stmt s : block.statements) {
+                    stmt(code, s);
+                }
+                scopes.pop();
+            } else if (stmt instanceof Stmt.Var var) {
+                if (var.value == null) throw new Unsupported("variable <" + var.name.lexeme + "> starts as nil");
+                number(code, var.value);
+                int slot = nextLocal;
+                nextLocal += 2;
+                code.local(0x39, slot, -2); // dstore
+                scopes.peek().put(var.name.lexeme, slot);
+            } else if (stmt instanceof Stmt.Expression expression) {
+                if (expression.expr instanceof Expr.Assignment assignment) {
+                    number(code, assignment.value);
+                    code.local(0x39, local(assignment.name), -2); // dstore
+                } else {
+                    number(code, expression.expr);
+                    code.op(0x58, -2); // pop2
+                }
+            } else if (stmt instanceof Stmt.If ifStmt) {
+                Label elseBranch = new Label();
+                Label end = new Label();
+                branch(code, ifStmt.condition, false, elseBranch);
+                stmt(code, ifStmt.thenBranch);
+                code.jump(0xa7, end, 0); // goto
+                code.place(elseBranch);
+                if (ifStmt.elseBranch != null) stmt(code, ifStmt.elseBranch);
+                code.place(end);
+            } else if (stmt instanceof Stmt.While whileStmt) {
+                Label start = new Label();
+                Label end = new Label();
+                code.place(start);
+                branch(code, whileStmt.condition, false, end);
+                loops.push(end);
+                stmt(code, whileStmt.body);
+                loops.pop();
+                code.jump(0xa7, start, 0); // goto
+                code.place(end);
+            } else if (stmt instanceof Stmt.Break) {
+                if (loops.isEmpty()) throw new Unsupported("break outside of a loop");
+                code.jump(0xa7, loops.peek(), 0); // goto
+            } else if (stmt instanceof Stmt.Return ret) {
+                if (ret.value == null) throw new Unsupported("may return nil");
+                if (ret.tailCall != null) {
+                    Expr.Call call = ret.tailCall;
+                    // the params take the new arguments and the body starts over in the same JVM frame
+                    selfCall(call);
+                    for (Expr arg : call.args) {
+                        number(code, arg);
+                    }
+                    for (int i = call.args.size() - 1; i >= 0; i--) {
+                        code.local(0x39, 2 * i, -2); // dstore
+                    }
+                    code.jump(0xa7, top, 0); // goto
+                    return;
+                }
+                number(code, ret.value);
+                code.op(0xaf, -2); // dreturn
+            } else {
+                throw new Unsupported(stmt.getClass().getSimpleName().toLowerCase() + " statement");
+            }
+        }
+
+        // leaves a double on the stack
+        private void number(Code code, Expr expr) {
+            if (expr instanceof Expr.Literal literal) {
+                if (!(literal.value instanceof Double value)) throw new Unsupported("non-number literal");
+                if (Double.doubleToRawLongBits(value) == 0L) {
+                    code.op(0x0e, 2); // dconst_0
+                } else if (value == 1.0) {
+                    code.op(0x0f, 2); // dconst_1
+                } else {
+                    code.op(0x14, 2); // ldc2_w
+                    code.u2(cp.doubleConst(value));
+                }
+            } else if (expr instanceof Expr.Grouping grouping) {
+                number(code, grouping.expr);
+            } else if (expr instanceof Expr.Variable variable) {
+                code.local(0x18, local(variable.name), 2); // dload
+            } else if (expr instanceof Expr.Assignment assignment) {
+                number(code, assignment.value);
+                code.op(0x5c, 2); // dup2
+                code.local(0x39, local(assignment.name), -2); // dstore
+            } else if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.MINUS) {
+                number(code, unary.right);
+                code.op(0x77, 0); // dneg
+            } else if (expr instanceof Expr.Binary binary) {
+                int opcode = switch (binary.operator.type) {
+                    case PLUS -> 0x63;  // dadd
+                    case MINUS -> 0x67; // dsub
+                    case STAR -> 0x6b;  // dmul
+                    case SLASH -> 0x6f; // ddiv
+                    default -> throw new Unsupported("'" + binary.operator.lexeme + "' used as a value");
+                };
+                number(code, binary.left);
+                number(code, binary.right);
+                code.op(opcode, -2);
+            } else if (expr instanceof Expr.Call call) {
+                selfCall(call);
+                for (Expr arg : call.args) {
+                    number(code, arg);
+                }
+                code.op(0xb8, 2 - 2 * call.args.size()); // invokestatic
+                code.u2(cp.methodRef(className, "run", runDescriptor));
+            } else {
+                throw new Unsupported(expr.getClass().getSimpleName().toLowerCase() + " expression");
+            }
+        }
+
+        private void selfCall(Expr.Call call) {
+            if (!(call.callee instanceof Expr.Variable callee)
+                    || !callee.name.lexeme.equals(function.name.lexeme)
+                    || find(callee.name) != -1) {
+                throw new Unsupported("calls something other than itself");
+            }
+            if (call.args.size() != function.params.size()) throw new Unsupported("arity mismatch");
+        }
+
+        // jumps to `target` when the condition evaluates to `jumpIf`, falls through otherwise
+        private void branch(Code code, Expr expr, boolean jumpIf, Label target) {
+            if (expr instanceof Expr.Grouping grouping) {
+                branch(code, grouping.expr, jumpIf, target);
+            } else if (expr instanceof Expr.Literal literal && literal.value instanceof Boolean value) {
+                if (value == jumpIf) code.jump(0xa7, target, 0); // goto
+            } else if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.BANG) {
+                branch(code, unary.right, !jumpIf, target);
+            } else if (expr instanceof Expr.Logical logical) {
+                boolean isOr = logical.operator.type == TokenType.OR;
+                if (isOr == jumpIf) {
+                    branch(code, logical.left, jumpIf, target);
+                    branch(code, logical.right, jumpIf, target);
+                } else {
+                    Label skip = new Label();
+                    branch(code, logical.left, !jumpIf, skip);
+                    branch(code, logical.right, jumpIf, target);
+                    code.place(skip);
+                }
+            } else if (expr instanceof Expr.Binary binary && isComparison(binary.operator.type)) {
+                number(code, binary.left);
+                number(code, binary.right);
+                compare(code, binary.operator.type, jumpIf, target);
+            } else {
+                // numbers are always truthy
+                number(code, expr);
+                code.op(0x58, -2); // pop2
+                if (jumpIf) code.jump(0xa7, target, 0); // goto
+            }
+        }
+
+        private boolean isComparison(TokenType type) {
+            return switch (type) {
+                case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL, EQUAL_EQUAL, BANG_EQUAL -> true;
+                default -> false;
+            };
+        }
+
+        // dcmpg / dcmpl are picked so that NaN makes every ordered comparison false
+        private void compare(Code code, TokenType type, boolean jumpIf, Label target) {
+            switch (type) {
+                case LESS, LESS_EQUAL -> code.op(0x98, -3); // dcmpg
+                case GREATER, GREATER_EQUAL -> code.op(0x97, -3); // dcmpl
+                default -> {
+                    // Double.equals semantics, like Interpreter.isEqual
+                    code.op(0xb8, -3); // invokestatic
+                    code.u2(cp.methodRef("java/lang/Double", "compare", "(DD)I"));
+                }
+            }
+
+            int opcode = switch (type) {
+                case LESS -> jumpIf ? 0x9b : 0x9c;          // iflt : ifge
+                case LESS_EQUAL -> jumpIf ? 0x9e : 0x9d;    // ifle : ifgt
+                case GREATER -> jumpIf ? 0x9d : 0x9e;       // ifgt : ifle
+                case GREATER_EQUAL -> jumpIf ? 0x9c : 0x9b; // ifge : iflt
+                case EQUAL_EQUAL -> jumpIf ? 0x99 : 0x9a;   // ifeq : ifne
+                default -> jumpIf ? 0x9a : 0x99;            // ifne : ifeq
+            };
+            code.jump(opcode, target, -1);
+        }
+
+        private int find(Token name) {
+            for (Map<String, Integer> scope : scopes) {
+                Integer slot = scope.get(name.lexeme);
+                if (slot != null) return slot;
+            }
+            return -1;
+        }
+
+        private int local(Token name) {
+            int slot = find(name);
+            if (slot == -1) throw new Unsupported("uses global <" + name.lexeme + ">");
+            return slot;
+        }
+
+        // Object call(List<Object> args) { return run(((Double) args.get(0)).doubleValue(), ...); }
+        private Code bridge() {
+            Code code = new Code();
+            for (int i = 0; i < function.params.size(); i++) {
+                code.op(0x2b, 1); // aload_1
+                code.op(0x11, 1); // sipush
+                code.u2(i);
+                code.op(0xb9, -1); // invokeinterface
+                code.u2(cp.interfaceMethodRef("java/util/List", "get", "(I)Ljava/lang/Object;"));
+                code.u1(2);
+                code.u1(0);
+                code.op(0xc0, 0); // checkcast
+                code.u2(cp.classRef("java/lang/Double"));
+                code.op(0xb6, 1); // invokevirtual
+                code.u2(cp.methodRef("java/lang/Double", "doubleValue", "()D"));
+            }
+            code.op(0xb8, 2 - 2 * function.params.size()); // invokestatic
+            code.u2(cp.methodRef(className, "run", runDescriptor));
+            code.op(0xb8, -1); // invokestatic
+            code.u2(cp.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+            code.op(0xb0, -1); // areturn
+            return code;
+        }
+
+        // version 49 class files don't need stack map frames
+        private byte[] assemble(Code run, Code call, int runLocals) {
+            Code init = new Code();
+            init.op(0x2a, 1); // aload_0
+            init.op(0xb7, -1); // invokespecial
+            init.u2(cp.methodRef("java/lang/Object", "<init>", "()V"));
+            init.op(0xb1, 0); // return
+
+            int thisClass = cp.classRef(className);
+            int superClass = cp.classRef("java/lang/Object");
+            int entry = cp.classRef("com/craftinginterpreters/lox/Jit$Entry");
+            int codeName = cp.utf8("Code");
+            int initName = cp.utf8("<init>");
+            int initDesc = cp.utf8("()V");
+            int runName = cp.utf8("run");
+            int runDesc = cp.utf8(runDescriptor);
+            int callName = cp.utf8("call");
+            int callDesc = cp.utf8("(Ljava/util/List;)Ljava/lang/Object;");
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(cp.count);
+                cp.bytes.writeTo(out);
+                out.writeShort(0x0031); // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(entry);
+                out.writeShort(0); // fields
+                out.writeShort(3);
+                method(out, 0x0001, initName, initDesc, codeName, init, 1);
+                method(out, 0x0009, runName, runDesc, codeName, run, Math.max(runLocals, 1));
+                method(out, 0x0001, callName, callDesc, codeName, call, 2);
+                out.writeShort(0); // attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new Unsupported(e.getMessage());
+            }
+        }
+
+        private void method(DataOutputStream out, int access, int name, int descriptor,
+                            int codeName, Code code, int maxLocals) throws IOException {
+            if (code.length > 0xffff || maxLocals > 0xffff) throw new Unsupported("function too large");
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+
+    private static class Label {
+        int position = -1;
+        final List<int[]> uses = new ArrayList<>(); // {instruction, operand}
+    }
+
+    // bytecode of one method, tracks the operand stack depth for max_stack
+    private static class Code {
+        byte[] bytes = new byte[64];
+        int length = 0;
+        int stack = 0;
+        int maxStack = 0;
+
+        void u1(int b) {
+            if (length == bytes.length) bytes = java.util.Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) b;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            stack += stackEffect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void local(int opcode, int slot, int stackEffect) {
+            if (slot > 0xff) {
+                op(0xc4, 0); // wide
+                u1(opcode);
+                u2(slot);
+                stack += stackEffect;
+                maxStack = Math.max(maxStack, stack);
+            } else {
+                op(opcode, stackEffect);
+                u1(slot);
+            }
+        }
+
+        void jump(int opcode, Label label, int stackEffect) {
+            int instruction = length;
+            op(opcode, stackEffect);
+            if (label.position >= 0) {
+                u2(offset(label.position - instruction));
+            } else {
+                label.uses.add(new int[]{instruction, length});
+                u2(0);
+            }
+        }
+
+        void place(Label label) {
+            label.position = length;
+            for (int[] use : label.uses) {
+                int offset = offset(length - use[0]);
+                bytes[use[1]] = (byte) (offset >> 8);
+                bytes[use[1] + 1] = (byte) offset;
+            }
+        }
+
+        private int offset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new Unsupported("function too large");
+            return offset;
+        }
+    }
+
+    private static class ConstantPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> index = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 1, () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int interfaceMethodRef(String owner, String name, String descriptor) {
+            return memberRef(11, owner, name, descriptor);
+        }
+
+        // doubles take two pool slots
+        int doubleConst(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+                out.writeByte(6);
+                out.writeDouble(value);
+            });
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + ";" + descriptor, 1, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+            return entry(tag + owner + "." + name + descriptor, 1, () -> {
+                out.writeByte(tag);
+                out.writeShort(ownerIndex);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+
+        private int entry(String key, int size, Writer writer) {
+            Integer existing = index.get(key);
+            if (existing != null) return existing;
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new Unsupported(e.getMessage());
+            }
+            index.put(key, count);
+            count += size;
+            return count - size;
+        }
+    }
+}
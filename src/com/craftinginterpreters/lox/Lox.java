@@ -2,105 +2,179 @@ package com.craftinginterpreters.lox;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
+// command line front end, scripts run in a LoxContext like any other embedder would use
 public class Lox {
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
-
-    private static final Interpreter interpreter = new Interpreter();
 
     public static void main(String[] args) throws IOException {
 
         System.out.println(Paths.get("./").toAbsolutePath());
 
-        if (args.length > 1 ) {
-            System.out.println("Usage : jlox [script]");
-            System.exit(64);
-        } else if ( args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+        // --engine=vm compiles to bytecode instead of walking the tree
+        boolean useVM = false;
+        boolean disassemble = false;
+        boolean dumpAst = false;
+        int jitThreshold = 0;
+        // --batch runs every .lox file of a directory in one JVM
+        boolean batch = false;
+        // --compile writes the bytecode of the script next to it as .loxc
+        boolean compile = false;
+        long timeoutMillis = 10_000;
+        long maxAllocatedBytes = 0;
+
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--engine=vm")) {
+                useVM = true;
+            } else if (arg.equals("--engine=tree")) {
+                useVM = false;
+            } else if (arg.equals("--disassemble")) {
+                disassemble = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--jit")) {
+                jitThreshold = 1000;
+            } else if (arg.startsWith("--jit=")) {
+                jitThreshold = Integer.parseInt(arg.substring("--jit=".length()));
+            } else if (arg.equals("--compile")) {
+                compile = true;
+            } else if (arg.equals("--batch")) {
+                batch = true;
+            } else if (arg.startsWith("--timeout=")) {
+                timeoutMillis = Long.parseLong(arg.substring("--timeout=".length()));
+            } else if (arg.startsWith("--max-alloc=")) {
+                maxAllocatedBytes = Long.parseLong(arg.substring("--max-alloc=".length())) << 20;
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                files.add(arg);
+            }
         }
 
-    }
-
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        LoxEngine engine = new LoxEngine(useVM, disassemble, dumpAst, jitThreshold, LoxEngine.DEFAULT_AST_CACHE_SIZE);
+        if (batch) {
+            if (files.size() != 1) usage();
+            LoxBatch runner = new LoxBatch(engine, Runtime.getRuntime().availableProcessors(), timeoutMillis, maxAllocatedBytes);
+            runBatch(runner, Paths.get(files.get(0)));
+            return;
+        }
 
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
-    }
+        LoxContext context = engine.newContext();
 
-    private static void runPrompt() throws IOException {
-        InputStreamReader sr = new InputStreamReader(System.in);
-        BufferedReader br = new BufferedReader(sr);
-
-        for(;;) {
-            System.out.print("> ");
-            String line = br.readLine();
-            if (line == null) break;
-            run(line);
-            hadError = false; // do not kill entire session
+        if (compile) {
+            if (files.size() != 1) usage();
+            compileFile(context, files.get(0));
+            return;
         }
-    }
 
+        if (files.size() > 1 ) {
+            usage();
+        } else if ( files.size() == 1) {
+            runFile(context, files.get(0));
+        } else {
+            runPrompt(context);
+        }
 
-    private static void run(String s) {
+    }
 
-        Scanner scanner = new Scanner(s);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> expression = parser.parse();
+    private static void usage() {
+        System.out.println("Usage : jlox [--engine=tree|vm] [--disassemble] [--dump-ast] [--jit[=threshold]] [script]");
+        System.out.println("        jlox --compile script.lox");
+        System.out.println("        jlox --batch [--timeout=ms] [--max-alloc=mb] [--engine=tree|vm] [--jit[=threshold]] dir");
+        System.exit(64);
+    }
 
-        if (hadError) return;
+    private static void runBatch(LoxBatch runner, Path dir) throws IOException {
+        List<LoxBatch.Script> scripts = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path path : paths.filter(p -> p.toString().endsWith(".lox")).sorted().toList()) {
+                scripts.add(new LoxBatch.Script(path.getFileName().toString(),
+                        new String(Files.readAllBytes(path), Charset.defaultCharset())));
+            }
+        }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(expression);
+        long start = System.nanoTime();
+        List<LoxBatch.Result> results;
+        try {
+            results = runner.run(scripts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-        interpreter.interpret(expression);
+        int failed = 0;
+        for (LoxBatch.Result result : results) {
+            System.out.printf("== %s : %s (%d ms) ==\n", result.name(), result.status(), result.nanos() / 1_000_000);
+            System.out.print(result.output());
+            System.err.print(result.errors());
+            if (result.status() != LoxBatch.Status.OK) failed++;
+        }
+        System.out.printf("%d scripts, %d failed, %d ms\n", results.size(), failed, (System.nanoTime() - start) / 1_000_000);
 
+        if (failed > 0) System.exit(70);
     }
 
-    static void error(int line , String message) {
-        report(line , "" , message);
-    }
+    private static void compileFile(LoxContext context, String path) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        Chunk script = context.compile(new String(bytes, Charset.defaultCharset()));
+        if (script == null) System.exit(65);
 
-    static void error(String callee , String message) {
-        report( "" , message);
+        String target = (path.endsWith(".lox") ? path.substring(0, path.length() - ".lox".length()) : path) + ".loxc";
+        ChunkFile.write(script, Paths.get(target));
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, "at end" , message);
+    private static void runFile(LoxContext context, String path) throws IOException {
+        if (path.endsWith(".loxc")) {
+            try {
+                context.run(ChunkFile.read(Paths.get(path)));
+            } catch (ChunkFile.FormatError e) {
+                System.err.println(path + ": " + e.getMessage());
+                System.exit(65);
+            }
         } else {
-            report(token.line, "at '" + token.lexeme + "'" , message);
+            // decoded straight from the mapped file, no byte[] and String copies of the source
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                CharBuffer source = Charset.defaultCharset().decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                context.run(source);
+            }
         }
-    }
 
-    private static void report(int line, String where , String message) {
-        System.err.printf("\n[Line %d] Error %s : %s\n" , line , where , message);
-        hadError = true;
-    }
+        context.reportJit();
 
-    private static void report(String where , String message) {
-        System.err.printf("\nError %s : %s\n" ,  where , message);
-        hadError = true;
+        if (context.hadError()) System.exit(65);
+        if (context.hadRuntimeError()) System.exit(70);
     }
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(String.format("\n[line %s] : " , error.token.line) + error.getMessage()  );
-        hadRuntimeError = true;
-    }
+    // the session is one document that grows by a line at a time, only the new line is parsed
+    // and resolved. lines with errors are taken back out so the session goes on
+    private static void runPrompt(LoxContext context) throws IOException {
+        InputStreamReader sr = new InputStreamReader(System.in);
+        BufferedReader br = new BufferedReader(sr);
+        LoxDocument session = context.newDocument("");
 
-    public static void runtimeError(String error) {
-        System.err.println(String.format("\n%s" , error ));
-        hadRuntimeError = true;
+        for(;;) {
+            System.out.print("> ");
+            String line = br.readLine();
+            if (line == null) break;
+            int end = session.text().length();
+            List<Stmt> statements = session.edit(end, 0, line + "\n");
+            if (session.hadError()) {
+                session.edit(end, line.length() + 1, "");
+            } else {
+                context.run(statements, session.frameSize());
+            }
+            context.clearErrors(); // do not kill entire session
+        }
     }
 }
@@ -0,0 +1,140 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// the runtime array. an array is a view of [start, start + length) of a Storage, slices are
+// views of the same Storage so writes through one show in the other. appending grows the
+// storage in place while the view ends where the storage does, otherwise the view first
+// copies its elements out and stops sharing.
+// elements are kept unboxed in a double[] while all of them are numbers. the first store of
+// anything else moves the storage to an Object[] for good, every view of it included
+public final class LoxArray {
+    private static final double[] NO_NUMBERS = new double[0];
+
+    private static final class Storage {
+        // exactly one of the two is set
+        double[] numbers;
+        Object[] values;
+        int size;
+
+        Storage(double[] numbers, int size) {
+            this.numbers = numbers;
+            this.size = size;
+        }
+
+        Storage(Object[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        void generalize() {
+            values = new Object[numbers.length];
+            for (int i = 0; i < size; i++) {
+                values[i] = Interpreter.box(numbers[i]);
+            }
+            numbers = null;
+        }
+
+        int capacity() {
+            return numbers != null ? numbers.length : values.length;
+        }
+
+        void grow(int capacity) {
+            if (numbers != null) {
+                numbers = Arrays.copyOf(numbers, capacity);
+            } else {
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+    }
+
+    private Storage storage;
+    private int start;
+    private int length;
+
+    public LoxArray() {
+        this(new Storage(NO_NUMBERS, 0), 0, 0);
+    }
+
+    // takes the array over, the caller must not keep it
+    LoxArray(Object[] values) {
+        this(storageOf(values), 0, values.length);
+    }
+
+    private LoxArray(Storage storage, int start, int length) {
+        this.storage = storage;
+        this.start = start;
+        this.length = length;
+    }
+
+    private static Storage storageOf(Object[] values) {
+        double[] numbers = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Double number)) return new Storage(values, values.length);
+            numbers[i] = number;
+        }
+        return new Storage(numbers, values.length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // the element index refers to, -1 when it isn't a whole number inside the array
+    int index(double index) {
+        int i = (int) index;
+        if (i != index || i < 0 || i >= length) return -1;
+        return i;
+    }
+
+    public Object get(int index) {
+        Storage storage = this.storage;
+        if (storage.numbers != null) return Interpreter.box(storage.numbers[start + index]);
+        return storage.values[start + index];
+    }
+
+    public void set(int index, Object value) {
+        Storage storage = this.storage;
+        if (storage.numbers != null) {
+            if (value instanceof Double number) {
+                storage.numbers[start + index] = number;
+                return;
+            }
+            storage.generalize();
+        }
+        storage.values[start + index] = value;
+    }
+
+    public void append(Object value) {
+        if (start + length != storage.size) {
+            storage = storage.numbers != null
+                    ? new Storage(Arrays.copyOfRange(storage.numbers, start, start + length), length)
+                    : new Storage(Arrays.copyOfRange(storage.values, start, start + length), length);
+            start = 0;
+        }
+        if (storage.size == storage.capacity()) {
+            storage.grow(Math.max(8, storage.size * 2));
+        }
+        storage.size++;
+        length++;
+        set(length - 1, value);
+    }
+
+    // from and to are clamped to the array, an empty range gives an empty slice
+    public LoxArray slice(int from, int to) {
+        from = Math.max(0, Math.min(from, length));
+        to = Math.max(from, Math.min(to, length));
+        return new LoxArray(storage, start + from, to - from);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < length; i++) {
+            if (i > 0) sb.append(", ");
+            Object value = get(i);
+            sb.append(value == this ? "[...]" : Interpreter.format(value));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,154 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// runs many scripts in one JVM, each in its own LoxContext on a fixed pool of threads.
+// a watchdog cancels scripts that go over their time or allocation budget
+public final class LoxBatch {
+
+    public record Script(String name, String source) {
+    }
+
+    public enum Status {
+        OK,
+        ERROR,          // scan, parse or resolve errors, nothing ran
+        RUNTIME_ERROR,
+        TIMEOUT,
+        MEMORY_LIMIT,   // allocated more than the budget
+        CRASHED         // escaped the interpreter, e.g. StackOverflowError
+    }
+
+    public record Result(String name, Status status, String output, String errors, long nanos) {
+    }
+
+    private static final long WATCHDOG_PERIOD_MILLIS = 10;
+
+    private final LoxEngine engine;
+    private final int threads;
+    private final long timeoutMillis;
+    // bytes a script may allocate in total, 0 for no limit
+    private final long maxAllocatedBytes;
+
+    public LoxBatch(LoxEngine engine, int threads, long timeoutMillis, long maxAllocatedBytes) {
+        this.engine = engine;
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAllocatedBytes = maxAllocatedBytes;
+    }
+
+    // results come back in the order of the scripts
+    public List<Result> run(List<Script> scripts) throws InterruptedException {
+        List<Job> jobs = new ArrayList<>(scripts.size());
+        for (Script script : scripts) {
+            jobs.add(new Job(script));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lox-batch-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleAtFixedRate(() -> jobs.forEach(Job::check),
+                WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        try {
+            List<Future<Result>> futures = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                futures.add(pool.submit(job::call));
+            }
+
+            List<Result> results = new ArrayList<>(jobs.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            watchdog.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
+
+    private static long allocatedBytes(Thread thread) {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean) {
+            return bean.getThreadAllocatedBytes(thread.getId());
+        }
+        return -1;
+    }
+
+    private final class Job {
+        private final Script script;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        private final LoxContext context;
+
+        // written by the worker, read by the watchdog
+        private volatile Thread thread = null;
+        private volatile long startNanos;
+        private volatile long startBytes;
+        private volatile Status limit = null;
+
+        Job(Script script) {
+            this.script = script;
+            this.context = engine.newContext(InputStream.nullInputStream(), new PrintStream(out, true), new PrintStream(err, true));
+        }
+
+        Result call() {
+            startNanos = System.nanoTime();
+            startBytes = allocatedBytes(Thread.currentThread());
+            thread = Thread.currentThread();
+
+            Status status;
+            try {
+                context.run(script.source());
+                if (context.hadError()) {
+                    status = Status.ERROR;
+                } else if (context.hadRuntimeError()) {
+                    status = Status.RUNTIME_ERROR;
+                } else {
+                    status = Status.OK;
+                }
+            } catch (LoxContext.Cancelled e) {
+                status = limit;
+            } catch (RuntimeException | StackOverflowError | OutOfMemoryError e) {
+                // a bug in the interpreter or the JVM running out must not take the other scripts down
+                context.err.println(e);
+                status = Status.CRASHED;
+            } finally {
+                thread = null;
+            }
+
+            long nanos = System.nanoTime() - startNanos;
+            return new Result(script.name(), status, out.toString(), err.toString(), nanos);
+        }
+
+        void check() {
+            Thread running = thread;
+            if (running == null || limit != null) return;
+
+            if (timeoutMillis > 0 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+                limit = Status.TIMEOUT;
+                context.cancel();
+            } else if (maxAllocatedBytes > 0 && startBytes >= 0
+                    && allocatedBytes(running) - startBytes > maxAllocatedBytes) {
+                limit = Status.MEMORY_LIMIT;
+                context.cancel();
+            }
+        }
+    }
+}
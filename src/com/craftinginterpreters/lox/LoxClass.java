@@ -10,6 +10,9 @@ public class LoxClass implements LoxCallable {
 
     final Map<String , LoxFunction> funcs;
 
+    // root of the shape tree of this class' instances
+    final Shape rootShape = new Shape();
+    int instanceSize = 0;
 
     public LoxClass(String name,  LoxClass superclass , Map<String, LoxFunction> funcs) {
         this.name = name;
@@ -17,6 +20,14 @@ public class LoxClass implements LoxCallable {
         this.superclass = superclass;
     }
 
+    LoxFunction findMethod(String name) {
+        LoxFunction method = funcs.get(name);
+        if (method == null && superclass != null) {
+            return superclass.findMethod(name);
+        }
+        return method;
+    }
+
     @Override
     public String toString() {
         return "<class " + name + ">";
@@ -24,23 +35,19 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        LoxInstance instance = new LoxInstance(this , interpreter.globals);
-        LoxFunction initializer = funcs.get("init");
-        if (initializer == null) {
-            initializer = superclass.funcs.get("init");
-        }
-
+        LoxInstance instance = new LoxInstance(this);
+        // methods stay on the class and are bound when accessed, so this is O(1) in the method count
+        LoxFunction initializer = findMethod("init");
         if ( initializer != null ) {
             initializer.bind(instance).call(interpreter, args);
         }
 
-
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = funcs.get("init");
+        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
@@ -0,0 +1,189 @@
+package com.craftinginterpreters.lox;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+// one isolated interpreter: its own globals, error state and streams.
+// a context is not thread-safe, run different scripts concurrently in different contexts
+public final class LoxContext {
+    private final LoxEngine engine;
+    final Interpreter interpreter;
+    private VM vm = null;
+
+    final PrintStream out;
+    final PrintStream err;
+    private final InputStream inStream;
+    private java.util.Scanner in = null;
+
+    // LoxDocument swaps it to tell which declarations had errors
+    boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    // set from another thread, the script stops at its next loop iteration or call
+    private volatile boolean cancelled = false;
+
+    public static final class Cancelled extends RuntimeException {
+        Cancelled() {
+            super("script cancelled", null, false, false);
+        }
+    }
+
+    LoxContext(LoxEngine engine, InputStream in, PrintStream out, PrintStream err) {
+        this.engine = engine;
+        this.inStream = in;
+        this.out = out;
+        this.err = err;
+        this.interpreter = new Interpreter(this);
+        if (engine.jitThreshold > 0) {
+            interpreter.jit = new Jit(interpreter.globals, engine.jitThreshold);
+        }
+    }
+
+    // scanner, parser and resolver only: a task of ParallelFrontEnd reports here, it runs nothing
+    LoxContext(LoxEngine engine, PrintStream err) {
+        this.engine = engine;
+        this.inStream = null;
+        this.out = err;
+        this.err = err;
+        this.interpreter = null;
+    }
+
+    public void run(CharSequence source) {
+        AstCache cache = engine.astCache;
+        String key = cache == null ? null : AstCache.key(source);
+        AstCache.Program program = cache == null ? null : cache.take(key);
+
+        if (program == null) {
+            program = parse(source);
+            if (program == null) return;
+        }
+
+        if (engine.dumpAst) out.print(new AstPrinter().print(program.statements));
+
+        // only programs without diagnostics are cached, a hit would skip reporting them again
+        boolean cacheable = cache != null && !hadError;
+        try {
+            if (engine.useVM) {
+                if (program.chunk == null) program.chunk = new Compiler(this).compile(program.statements);
+                if (program.chunk == null) {
+                    cacheable = false;
+                    return;
+                }
+                run(program.chunk);
+                return;
+            }
+
+            interpreter.interpret(program.statements, program.frameSize);
+        } finally {
+            if (cacheable) cache.put(key, program);
+        }
+    }
+
+    // runs bytecode on the VM whatever engine was picked, e.g. a script loaded from a .loxc file
+    public void run(Chunk script) {
+        if (engine.disassemble) script.disassemble(out);
+        if (vm == null) vm = new VM(interpreter);
+        vm.interpret(script);
+    }
+
+    // runs statements parsed elsewhere, e.g. the declarations a LoxDocument edit brought in
+    public void run(List<Stmt> statements, int frameSize) {
+        if (engine.useVM) {
+            Chunk chunk = new Compiler(this).compile(statements);
+            if (chunk != null) run(chunk);
+            return;
+        }
+        interpreter.interpret(statements, frameSize);
+    }
+
+    public LoxDocument newDocument(CharSequence text) {
+        return new LoxDocument(this, text);
+    }
+
+    // front end and bytecode compiler only, null when there were errors
+    public Chunk compile(CharSequence source) {
+        AstCache.Program program = parse(source);
+        if (program == null || hadError) return null;
+        return new Compiler(this).compile(program.statements);
+    }
+
+    private AstCache.Program parse(CharSequence source) {
+        if (source.length() >= ParallelFrontEnd.MIN_SOURCE && ParallelFrontEnd.PARALLELISM > 1) {
+            AstCache.Program program = ParallelFrontEnd.parse(this, source);
+            if (program != null) return program;
+        }
+
+        Parser parser = new Parser(new Scanner(source, this), this);
+        List<Stmt> statements = parser.parse();
+
+        if (hadError) return null;
+
+        Resolver resolver = new Resolver(this);
+        resolver.resolve(statements);
+        if (!hadError) new Optimizer().optimize(statements);
+        return new AstCache.Program(statements, resolver);
+    }
+
+    LoxEngine engine() {
+        return engine;
+    }
+
+    public boolean hadError() {
+        return hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    // the REPL keeps going after a line with errors
+    public void clearErrors() {
+        hadError = false;
+        hadRuntimeError = false;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    void checkCancelled() {
+        if (cancelled) throw new Cancelled();
+    }
+
+    public PrintStream out() {
+        return out;
+    }
+
+    // stdin of the script, read by std.io.cin
+    public java.util.Scanner in() {
+        if (in == null) in = new java.util.Scanner(inStream);
+        return in;
+    }
+
+    public void reportJit() {
+        if (interpreter.jit != null) interpreter.jit.report(err);
+    }
+
+    void error(int line , String message) {
+        report(line , "" , message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, "at end" , message);
+        } else {
+            report(token.line, "at '" + token.lexeme + "'" , message);
+        }
+    }
+
+    private void report(int line, String where , String message) {
+        err.printf("\n[Line %d] Error %s : %s\n" , line , where , message);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        err.println(String.format("\n[line %s] : " , error.token.line) + error.getMessage()  );
+        hadRuntimeError = true;
+    }
+}
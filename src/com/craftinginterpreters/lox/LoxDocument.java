@@ -0,0 +1,191 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// a source text kept scanned, parsed and resolved across edits, for the REPL and editors.
+// top-level declarations don't see each other's scopes (they are globals), so each one is
+// parsed and resolved on its own. an edit re-parses from the declaration it touches until the
+// new parse lands on the start of an old declaration past the edit, the rest keeps its trees
+public final class LoxDocument {
+
+    private static final class Decl {
+        // null when the parser had to skip over it
+        final Stmt stmt;
+        final List<Token> tokens;
+        int start;
+        int end;
+        final int frameSize;
+        final boolean hadError;
+
+        // edits before the declaration move its tokens, applied once its tree is handed out
+        int offsetShift = 0;
+        int lineShift = 0;
+
+        Decl(Stmt stmt, List<Token> tokens, int start, int end, int frameSize, boolean hadError) {
+            this.stmt = stmt;
+            this.tokens = tokens;
+            this.start = start;
+            this.end = end;
+            this.frameSize = frameSize;
+            this.hadError = hadError;
+        }
+
+        int firstLine() {
+            return tokens.get(0).line + lineShift;
+        }
+
+        int lastLine() {
+            return tokens.get(tokens.size() - 1).line + lineShift;
+        }
+
+        void settle() {
+            if (offsetShift == 0 && lineShift == 0) return;
+            for (Token token : tokens) {
+                token.offset += offsetShift;
+                token.line += lineShift;
+            }
+            offsetShift = 0;
+            lineShift = 0;
+        }
+    }
+
+    // hands the parser the scanner's tokens and keeps them for the declaration being parsed
+    private static final class Recorder implements Iterator<Token> {
+        private final Scanner scanner;
+        private final List<Token> pulled = new ArrayList<>();
+
+        Recorder(Scanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return scanner.hasNext();
+        }
+
+        @Override
+        public Token next() {
+            Token token = scanner.next();
+            pulled.add(token);
+            return token;
+        }
+
+        // tokens before offset belong to the declaration just parsed, the rest is lookahead
+        List<Token> take(int offset) {
+            int n = 0;
+            while (n < pulled.size() && pulled.get(n).type != TokenType.EOF && pulled.get(n).offset < offset) n++;
+            List<Token> tokens = new ArrayList<>(pulled.subList(0, n));
+            pulled.subList(0, n).clear();
+            return tokens;
+        }
+    }
+
+    private final LoxContext context;
+    private final StringBuilder text = new StringBuilder();
+    private final List<Decl> decls = new ArrayList<>();
+
+    LoxDocument(LoxContext context, CharSequence text) {
+        this.context = context;
+        edit(0, 0, text);
+    }
+
+    // replaces removed chars at offset by inserted, returns the declarations that were parsed again
+    public List<Stmt> edit(int offset, int removed, CharSequence inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > text.length()) {
+            throw new IndexOutOfBoundsException("edit " + offset + "+" + removed + " of " + text.length());
+        }
+        text.replace(offset, offset + removed, inserted.toString());
+        int delta = inserted.length() - removed;
+
+        // declarations ending before the edit are kept as they are, the one before the first
+        // touched declaration is kept too but parsing restarts right after it
+        int first = 0;
+        while (first < decls.size() && decls.get(first).end < offset) first++;
+        if (first > 0 && decls.get(first - 1).hadError) first--;
+        int start = first == 0 ? 0 : decls.get(first - 1).end;
+        int line = first == 0 ? 1 : decls.get(first - 1).lastLine();
+
+        // old declarations wholly after the edit may be reused once the new parse reaches one
+        int next = first;
+        while (next < decls.size() && decls.get(next).start < offset + removed) next++;
+
+        Recorder recorder = new Recorder(new Scanner(text, start, line, context));
+        Parser parser = new Parser(recorder, context);
+        boolean hadError = context.hadError;
+        List<Decl> parsed = new ArrayList<>();
+        List<Stmt> statements = new ArrayList<>();
+
+        boolean synced = false;
+        while (!parser.isAtEnd()) {
+            int at = parser.next().offset;
+            while (next < decls.size() && decls.get(next).start + delta < at) next++;
+            if (next < decls.size() && decls.get(next).start + delta == at) {
+                synced = true;
+                break;
+            }
+
+            context.hadError = false;
+            Stmt stmt = parser.declaration();
+            int frameSize = 0;
+            if (!context.hadError) {
+                Resolver resolver = new Resolver(context);
+                resolver.resolve(stmt);
+                frameSize = resolver.frameSize();
+            }
+            int end = parser.next().offset;
+            List<Token> tokens = recorder.take(end);
+            Token last = tokens.get(tokens.size() - 1);
+            parsed.add(new Decl(stmt, tokens, at, last.offset + last.length, frameSize, context.hadError));
+            hadError |= context.hadError;
+            if (stmt != null) statements.add(stmt);
+        }
+
+        // what is left moved by delta chars and by the lines the edit added or removed
+        if (!synced) {
+            next = decls.size();
+        } else {
+            int lineDelta = parser.next().line - decls.get(next).firstLine();
+            for (Decl decl : decls.subList(next, decls.size())) {
+                decl.start += delta;
+                decl.end += delta;
+                decl.offsetShift += delta;
+                decl.lineShift += lineDelta;
+            }
+        }
+
+        decls.subList(first, next).clear();
+        decls.addAll(first, parsed);
+        context.hadError = hadError;
+        return statements;
+    }
+
+    public CharSequence text() {
+        return text;
+    }
+
+    public List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>(decls.size());
+        for (Decl decl : decls) {
+            decl.settle();
+            if (decl.stmt != null) statements.add(decl.stmt);
+        }
+        return statements;
+    }
+
+    // true while some declaration still has a parse or resolve error
+    public boolean hadError() {
+        for (Decl decl : decls) {
+            if (decl.hadError) return true;
+        }
+        return false;
+    }
+
+    // script frame slots needed to run any of the declarations
+    int frameSize() {
+        int size = 0;
+        for (Decl decl : decls) size = Math.max(size, decl.frameSize);
+        return size;
+    }
+}
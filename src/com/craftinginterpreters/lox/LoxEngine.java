@@ -0,0 +1,59 @@
+package com.craftinginterpreters.lox;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+// entry point for embedding: holds the options and the AST cache, and can be shared between threads.
+// every script runs in a LoxContext of its own
+public final class LoxEngine {
+
+    // compile to bytecode for the VM instead of walking the tree
+    final boolean useVM;
+    final boolean disassemble;
+    // print the tree the Optimizer left before running it
+    final boolean dumpAst;
+    // calls before a function is compiled to JVM bytecode, 0 turns the Jit off
+    final int jitThreshold;
+    // indexes of global names, shared by the trees and the contexts of the engine
+    final GlobalSlots globals = new GlobalSlots();
+    // programs already parsed by any context of this engine, null when caching is off
+    final AstCache astCache;
+
+    static final int DEFAULT_AST_CACHE_SIZE = 64;
+
+    public LoxEngine() {
+        this(false, false, 0);
+    }
+
+    public LoxEngine(boolean useVM, boolean disassemble, int jitThreshold) {
+        this(useVM, disassemble, jitThreshold, DEFAULT_AST_CACHE_SIZE);
+    }
+
+    public LoxEngine(boolean useVM, boolean disassemble, int jitThreshold, int astCacheSize) {
+        this(useVM, disassemble, false, jitThreshold, astCacheSize);
+    }
+
+    public LoxEngine(boolean useVM, boolean disassemble, boolean dumpAst, int jitThreshold, int astCacheSize) {
+        this.useVM = useVM;
+        this.disassemble = disassemble;
+        this.dumpAst = dumpAst;
+        this.jitThreshold = jitThreshold;
+        this.astCache = astCacheSize > 0 ? new AstCache(astCacheSize) : null;
+    }
+
+    public long astCacheHits() {
+        return astCache == null ? 0 : astCache.hits();
+    }
+
+    public long astCacheMisses() {
+        return astCache == null ? 0 : astCache.misses();
+    }
+
+    public LoxContext newContext() {
+        return newContext(System.in, System.out, System.err);
+    }
+
+    public LoxContext newContext(InputStream in, PrintStream out, PrintStream err) {
+        return new LoxContext(this, in, out, err);
+    }
+}
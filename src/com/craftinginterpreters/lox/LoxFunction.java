@@ -10,6 +10,10 @@ public class LoxFunction implements LoxCallable {
 
     private final boolean isInitializer;
 
+    // call counter and compiled body for the Jit tier
+    private int calls = 0;
+    private Jit.Entry compiled = null;
+
     public LoxFunction(Stmt.Function declaration, Environment enclosing, boolean isInitializer) {
 
         this.isInitializer = isInitializer;
@@ -17,35 +21,75 @@ public class LoxFunction implements LoxCallable {
         this.enclosing = enclosing;
     }
 
+    // a trampoline: a tail call comes back as TAIL_CALL and runs in the frame the returning call
+    // just gave up, so a chain of them takes no Java stack and no frame stack. one method on
+    // purpose, ordinary recursion pays a single JVM frame per Lox call here
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        try {
-
-            Environment environment = new Environment(enclosing);
+        LoxFunction function = this;
+        while (true) {
+            Stmt.Function declaration = function.declaration;
+            Jit jit = interpreter.jit;
+            if (jit != null) {
+                if (function.compiled != null && jit.canEnter(function, args)) {
+                    return function.compiled.call(args);
+                }
+                if (++function.calls == jit.threshold) {
+                    function.compiled = jit.compile(function);
+                }
+            }
 
-            for (int i = 0; i < declaration.params.size(); i++) {
-                environment.define(declaration.params.get(i).lexeme,
-                        args.get(i));
+            interpreter.context.checkCancelled();
+            int callerFp = interpreter.fp;
+            int callerSp = interpreter.sp;
+            try {
+
+                // only captured locals need an Environment, the rest lives in the frame
+                Environment environment = declaration.envSize == 0 ? function.enclosing : new Environment(function.enclosing, declaration.envSize);
+                interpreter.pushFrame(declaration.frameSize);
+
+                // params take the first slots of the frame
+                Object[] stack = interpreter.stack;
+                int fp = interpreter.fp;
+                int[] captured = declaration.paramEnvSlots;
+                for (int i = 0; i < declaration.params.size(); i++) {
+                    if (captured != null && captured[i] >= 0) {
+                        environment.define(captured[i], args.get(i));
+                    } else {
+                        stack[fp + i] = args.get(i);
+                    }
+                }
+
+                interpreter.executeBlock(declaration.body , environment);
+
+            } finally {
+                interpreter.popFrame(callerFp, callerSp);
             }
 
-            interpreter.executeBlock(declaration.body , environment);
+            // a break that found no loop in this body ends the call like a bare return
+            Interpreter.Completion completion = interpreter.completion;
+            interpreter.completion = Interpreter.Completion.NORMAL;
+            if (function.isInitializer) {
+                return function.enclosing.getAt(0,0);
+            }
+            if (completion != Interpreter.Completion.RETURN) {
+                return null;
+            }
 
-        } catch (Environment.EnvironmentStackTooMuchError e) {
-             Lox.error(declaration.name,"Too many environment are created, you may stuck in infinity loops.");
-        } catch (Interpreter.Return returnValue ) {
-            return returnValue.value;
-        }
+            Object value = interpreter.returnValue;
+            interpreter.returnValue = null;
+            if (value != Interpreter.TAIL_CALL) return value;
 
-        if (isInitializer) {
-            return enclosing.getAt(0,"this");
+            function = interpreter.tailCallee;
+            args = interpreter.tailArgs;
+            interpreter.tailCallee = null;
+            interpreter.tailArgs = null;
         }
-
-        return null;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(enclosing);
-        environment.define("this", instance);
+        Environment environment = new Environment(enclosing, 1);
+        environment.define(0, instance);
         return new LoxFunction( declaration , environment, isInitializer);
     }
 
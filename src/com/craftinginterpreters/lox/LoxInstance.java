@@ -1,46 +1,55 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    Environment env;
-    private final Map<String, Object> fields = new HashMap<>();
-    private final LoxInstance superClass = null;
-    public LoxInstance(LoxClass loxClass, Environment env) {
-        this.klass = loxClass;
-        this.env = new Environment(env);
-        this.env.define("this" , this);
-    }
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    Shape shape;
+    Object[] values;
 
-    public LoxInstance(LoxClass loxClass, LoxClass superClass ,Environment env) {
+    public LoxInstance(LoxClass loxClass) {
         this.klass = loxClass;
-        this.env = new Environment(env);
-        this.env.define("this" , this);
+        this.shape = loxClass.rootShape;
+        // size for the most fields an instance of this class has ended up with so far
+        this.values = loxClass.instanceSize == 0 ? NO_FIELDS : new Object[loxClass.instanceSize];
     }
 
     Object get(Token name) {
-        if ( superClass != null) {
-            superClass.get(name);
-        }
-        if (fields.containsKey(name.lexeme)) {
-            Object values = fields.get(name.lexeme);
-            try {
-                ((LoxFunction) values).bind(this);
-            } catch (ClassCastException ignored) {}
-            return values;
+        int slot = shape.lookup(name.lexeme);
+        if (slot >= 0) {
+            return values[slot];
         }
 
+        LoxFunction method = klass.findMethod(name.lexeme);
+        if (method != null) {
+            return method.bind(this);
+        }
 
         throw new RuntimeError(name , "Undefined property '" + name.lexeme + "'.");
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        set(name.lexeme, value);
     }
+
     void set(String name, Object value) {
-        fields.put(name, value);
+        int slot = shape.lookup(name);
+        if (slot < 0) {
+            slot = shape.size;
+            grow(shape.with(name));
+        }
+        values[slot] = value;
+    }
+
+    // move to the next shape of the transition tree, the new field goes in the last slot
+    void grow(Shape next) {
+        if (next.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(next.size, values.length * 2));
+        }
+        shape = next;
+        if (next.size > klass.instanceSize) klass.instanceSize = next.size;
     }
 
     public String toString() {
@@ -0,0 +1,174 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// the runtime map. entries are kept in insertion order in parallel arrays, an open addressing
+// table with linear probing holds the position of each entry, at most half full. strings and
+// numbers are hashed and compared without going through equals; keys match when == in Lox
+// would say they are equal. a removed entry stays in place as a hole until the entries are
+// compacted on the next grow
+public final class LoxMap {
+    private static final Object REMOVED = new Object();
+    private static final int EMPTY = -1;
+
+    private Object[] keys;
+    private Object[] values;
+    private int[] hashes;
+    // entries used, holes included
+    private int count = 0;
+    private int size = 0;
+    private int[] table;
+
+    public LoxMap() {
+        this(8);
+    }
+
+    public LoxMap(int capacity) {
+        allocate(Math.max(capacity, 8));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(Object key) {
+        int entry = find(key, hash(key));
+        return entry == EMPTY ? null : values[entry];
+    }
+
+    public boolean containsKey(Object key) {
+        return find(key, hash(key)) != EMPTY;
+    }
+
+    public void put(Object key, Object value) {
+        int hash = hash(key);
+        int entry = find(key, hash);
+        if (entry != EMPTY) {
+            values[entry] = value;
+            return;
+        }
+
+        if (count == keys.length) {
+            // only grow when compacting the holes out wouldn't leave a quarter free
+            allocate(size * 4 >= keys.length * 3 ? keys.length * 2 : keys.length);
+        }
+        keys[count] = key;
+        values[count] = value;
+        hashes[count] = hash;
+        insert(count, hash);
+        count++;
+        size++;
+    }
+
+    public boolean remove(Object key) {
+        int entry = find(key, hash(key));
+        if (entry == EMPTY) return false;
+        keys[entry] = REMOVED;
+        values[entry] = null;
+        size--;
+        return true;
+    }
+
+    // room for capacity entries in all before the next grow
+    public void reserve(int capacity) {
+        if (capacity > keys.length) allocate(capacity);
+    }
+
+    public LoxArray keys() {
+        return entries(keys);
+    }
+
+    public LoxArray values() {
+        return entries(values);
+    }
+
+    private LoxArray entries(Object[] column) {
+        Object[] live = new Object[size];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] != REMOVED) live[n++] = column[i];
+        }
+        return new LoxArray(live);
+    }
+
+    private int find(Object key, int hash) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == EMPTY) return EMPTY;
+            if (hashes[entry] == hash && matches(keys[entry], key)) return entry;
+        }
+    }
+
+    private void insert(int entry, int hash) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != EMPTY) i = (i + 1) & mask;
+        table[i] = entry;
+    }
+
+    // new arrays for capacity entries, the live entries move over in order
+    private void allocate(int capacity) {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        int oldCount = count;
+
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        Arrays.fill(table, EMPTY);
+        count = 0;
+
+        for (int i = 0; i < oldCount; i++) {
+            if (oldKeys[i] == REMOVED) continue;
+            keys[count] = oldKeys[i];
+            values[count] = oldValues[i];
+            hashes[count] = oldHashes[i];
+            insert(count, oldHashes[i]);
+            count++;
+        }
+    }
+
+    private static int hash(Object key) {
+        if (key instanceof String s) return mix(s.hashCode());
+        // whole numbers differ in the high bits only
+        if (key instanceof Double d) {
+            long bits = Double.doubleToLongBits(d);
+            return mix((int) (bits ^ (bits >>> 32)));
+        }
+        if (key == null) return 0;
+        return mix(key.hashCode());
+    }
+
+    // keys with hash codes close together, "key1", "key2", ... or 1, 2, ..., would otherwise
+    // fill runs of neighbouring slots and make the probes long
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    // what Interpreter.isEqual says for the same two values
+    private static boolean matches(Object entry, Object key) {
+        if (entry == key) return true;
+        if (entry instanceof String s) return key instanceof String && s.equals(key);
+        if (entry instanceof Double d) return key instanceof Double k && Double.doubleToLongBits(d) == Double.doubleToLongBits(k);
+        return entry != null && entry != REMOVED && entry.equals(key);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == REMOVED) continue;
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(keys[i] == this ? "{...}" : Interpreter.format(keys[i])).append(": ");
+            sb.append(values[i] == this ? "{...}" : Interpreter.format(values[i]));
+        }
+        return sb.append("}").toString();
+    }
+}
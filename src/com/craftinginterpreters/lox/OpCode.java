@@ -0,0 +1,69 @@
+package com.craftinginterpreters.lox;
+
+// instruction set of the bytecode VM, same layout as clox/include/chunk.h
+// operands follow the opcode in the chunk: u8 / u16 / u24 are big endian
+public final class OpCode {
+
+    private OpCode() {}
+
+    public static final byte OP_CONST         = 0;  // u8 constant
+    public static final byte OP_CONST_LONG    = 1;  // u24 constant
+    public static final byte OP_NIL           = 2;
+    public static final byte OP_TRUE          = 3;
+    public static final byte OP_FALSE         = 4;
+    public static final byte OP_POP           = 5;
+
+    public static final byte OP_GET_LOCAL     = 6;  // u8 slot
+    public static final byte OP_SET_LOCAL     = 7;  // u8 slot
+    public static final byte OP_GET_GLOBAL    = 8;  // u16 name
+    public static final byte OP_DEFINE_GLOBAL = 9;  // u16 name
+    public static final byte OP_SET_GLOBAL    = 10; // u16 name
+    public static final byte OP_GET_UPVALUE   = 11; // u8 index
+    public static final byte OP_SET_UPVALUE   = 12; // u8 index
+    public static final byte OP_GET_PROPERTY  = 13; // u16 name
+    public static final byte OP_SET_PROPERTY  = 14; // u16 name
+
+    public static final byte OP_EQUAL         = 15;
+    public static final byte OP_GREATER       = 16;
+    public static final byte OP_GREATER_EQUAL = 17;
+    public static final byte OP_LESS          = 18;
+    public static final byte OP_LESS_EQUAL    = 19;
+    public static final byte OP_ADD           = 20;
+    public static final byte OP_SUBTRACT      = 21;
+    public static final byte OP_MULTIPLY      = 22;
+    public static final byte OP_DIVIDE        = 23;
+    public static final byte OP_NOT           = 24;
+    public static final byte OP_NEGATE        = 25;
+    public static final byte OP_SUBSCRIPT     = 26;
+
+    public static final byte OP_JUMP          = 27; // u16 forward offset
+    public static final byte OP_JUMP_IF_FALSE = 28; // u16 forward offset, leaves the condition
+    public static final byte OP_LOOP          = 29; // u16 backward offset
+
+    public static final byte OP_CALL          = 30; // u8 argc
+    public static final byte OP_INVOKE        = 31; // u16 name, u8 argc
+    public static final byte OP_CLOSURE       = 32; // u16 function, then (u8 isLocal, u8 index) per upvalue
+    public static final byte OP_CLOSE_UPVALUE = 33;
+    public static final byte OP_RETURN        = 34;
+
+    public static final byte OP_CLASS         = 35; // u16 name
+    public static final byte OP_INHERIT       = 36;
+    public static final byte OP_METHOD        = 37; // u16 name
+    public static final byte OP_USE           = 38; // u16 namespace, u16 file
+    public static final byte OP_TAIL_CALL     = 39; // u8 argc, always followed by OP_RETURN
+    public static final byte OP_ARRAY         = 40; // u16 count
+    public static final byte OP_SET_SUBSCRIPT = 41;
+    public static final byte OP_MAP           = 42; // u16 count, of key/value pairs
+
+    static final String[] names = {
+            "OP_CONST", "OP_CONST_LONG", "OP_NIL", "OP_TRUE", "OP_FALSE", "OP_POP",
+            "OP_GET_LOCAL", "OP_SET_LOCAL", "OP_GET_GLOBAL", "OP_DEFINE_GLOBAL", "OP_SET_GLOBAL",
+            "OP_GET_UPVALUE", "OP_SET_UPVALUE", "OP_GET_PROPERTY", "OP_SET_PROPERTY",
+            "OP_EQUAL", "OP_GREATER", "OP_GREATER_EQUAL", "OP_LESS", "OP_LESS_EQUAL",
+            "OP_ADD", "OP_SUBTRACT", "OP_MULTIPLY", "OP_DIVIDE", "OP_NOT", "OP_NEGATE", "OP_SUBSCRIPT",
+            "OP_JUMP", "OP_JUMP_IF_FALSE", "OP_LOOP",
+            "OP_CALL", "OP_INVOKE", "OP_CLOSURE", "OP_CLOSE_UPVALUE", "OP_RETURN",
+            "OP_CLASS", "OP_INHERIT", "OP_METHOD", "OP_USE", "OP_TAIL_CALL",
+            "OP_ARRAY", "OP_SET_SUBSCRIPT", "OP_MAP",
+    };
+}
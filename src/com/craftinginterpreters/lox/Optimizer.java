@@ -0,0 +1,350 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+// runs on the resolved tree before it is executed or compiled. every visit returns what should
+// take the node's place: the node itself with its children rewritten, a simpler node, or for a
+// statement null when it can go. only rewrites that keep the runtime behaviour, errors included:
+//  - constant Binary, Unary, Logical and Ternary expressions are folded
+//  - if/while with a constant condition lose the branch that never runs
+//  - statements after a return or break are dropped
+//  - x / 2^n becomes x * 2^-n, a negated condition swaps the branches instead
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    // the result of a fold that would change behaviour, e.g. one that throws at runtime
+    private static final Object NO_FOLD = new Object();
+
+    void optimize(List<Stmt> statements) {
+        List<Stmt> optimized = optimizeAll(statements);
+        statements.clear();
+        statements.addAll(optimized);
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt stmt = optimize(statement);
+            if (stmt == null) continue;
+            optimized.add(stmt);
+            if (terminates(stmt)) break;
+        }
+        return optimized;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // control never reaches the statement after it
+    private static boolean terminates(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break) return true;
+        if (stmt instanceof Stmt.Block block) {
+            return !block.statements.isEmpty() && terminates(block.statements.get(block.statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If branch) {
+            return branch.elseBranch != null && terminates(branch.thenBranch) && terminates(branch.elseBranch);
+        }
+        return false;
+    }
+
+    private static Stmt.Block empty() {
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // same as Interpreter.isTrusty for the values a literal can hold
+    private static boolean isTruthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean b) return b;
+        return true;
+    }
+
+    private static boolean isNot(Expr expr) {
+        return expr instanceof Expr.Unary unary && unary.operator.type == TokenType.BANG;
+    }
+
+    // where only the truthiness of a value is used, !!x is as good as x
+    private Expr condition(Expr expr) {
+        expr = optimize(expr);
+        while (isNot(expr) && isNot(((Expr.Unary) expr).right)) {
+            expr = ((Expr.Unary) ((Expr.Unary) expr).right).right;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.left = optimize(expr.left);
+        expr.right = optimize(expr.right);
+
+        if (isConstant(expr.left) && isConstant(expr.right)) {
+            Object value = fold(expr.operator.type, valueOf(expr.left), valueOf(expr.right));
+            if (value != NO_FOLD) return new Expr.Literal(value);
+        }
+
+        // dividing by a power of two and multiplying by its inverse round the same way
+        if (expr.operator.type == TokenType.SLASH && isConstant(expr.right) && valueOf(expr.right) instanceof Double divisor) {
+            int exponent = Math.getExponent(divisor);
+            boolean powerOfTwo = (Double.doubleToRawLongBits(divisor) & 0x000fffffffffffffL) == 0;
+            if (powerOfTwo && exponent >= Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT) {
+                Token star = new Token(TokenType.STAR, "*", null, expr.operator.line, expr.operator.offset, expr.operator.length);
+                return new Expr.Binary(expr.left, star, new Expr.Literal(1.0 / divisor));
+            }
+        }
+        return expr;
+    }
+
+    // what Interpreter.binaryOp returns, NO_FOLD where it throws or formats a number
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL: return Objects.equals(left, right);
+            case BANG_EQUAL: return !Objects.equals(left, right);
+            case PLUS:
+                if (left instanceof String l && right instanceof String r) return l + r;
+                break;
+        }
+
+        if (!(left instanceof Double) || !(right instanceof Double)) return NO_FOLD;
+        double l = (Double) left;
+        double r = (Double) right;
+        switch (operator) {
+            case PLUS: return Interpreter.box(l + r);
+            case MINUS: return Interpreter.box(l - r);
+            case STAR: return Interpreter.box(l * r);
+            case SLASH: return Interpreter.box(l / r);
+            case GREATER: return l > r;
+            case GREATER_EQUAL: return l >= r;
+            case LESS: return l < r;
+            case LESS_EQUAL: return l <= r;
+        }
+        return NO_FOLD;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expr);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitMultiLiteralExpr(Expr.MultiLiteral expr) {
+        expr.elements.replaceAll(this::optimize);
+        return expr;
+    }
+
+    @Override
+    public Expr visitMapLiteralExpr(Expr.MapLiteral expr) {
+        expr.keys.replaceAll(this::optimize);
+        expr.values.replaceAll(this::optimize);
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        expr.right = optimize(expr.right);
+        if (!isConstant(expr.right)) return expr;
+
+        Object value = valueOf(expr.right);
+        switch (expr.operator.type) {
+            case BANG: return new Expr.Literal(!isTruthy(value));
+            case MINUS:
+                if (value instanceof Double number) return new Expr.Literal(Interpreter.box(-number));
+                break;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGlobalVariableExpr(Expr.GlobalVariable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignmentExpr(Expr.Assignment expr) {
+        expr.value = optimize(expr.value);
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        expr.left = optimize(expr.left);
+        expr.right = optimize(expr.right);
+        if (!isConstant(expr.left)) return expr;
+
+        // a constant left side either is the result or hands over to the right side
+        boolean truthy = isTruthy(valueOf(expr.left));
+        boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+        return shortCircuits ? expr.left : expr.right;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        expr.condition = condition(expr.condition);
+        expr.thenValue = optimize(expr.thenValue);
+        expr.elseValue = optimize(expr.elseValue);
+
+        if (isConstant(expr.condition)) {
+            return isTruthy(valueOf(expr.condition)) ? expr.thenValue : expr.elseValue;
+        }
+        if (isNot(expr.condition)) {
+            return new Expr.Ternary(((Expr.Unary) expr.condition).right, expr.elseValue, expr.thenValue);
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        expr.callee = optimize(expr.callee);
+        expr.args.replaceAll(this::optimize);
+        return expr;
+    }
+
+    @Override
+    public Expr visitAnonymousFuncExpr(Expr.AnonymousFunc expr) {
+        visitFunctionStmt(expr.func);
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get get) {
+        get.Obj = optimize(get.Obj);
+        return get;
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set set) {
+        set.value = optimize(set.value);
+        set.obj = optimize(set.obj);
+        return set;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This aThis) {
+        return aThis;
+    }
+
+    @Override
+    public Expr visitSubscriptExpr(Expr.Subscript subscript) {
+        subscript.object = optimize(subscript.object);
+        subscript.index = optimize(subscript.index);
+        return subscript;
+    }
+
+    @Override
+    public Expr visitSubscriptSetExpr(Expr.SubscriptSet subscript) {
+        subscript.object = optimize(subscript.object);
+        subscript.index = optimize(subscript.index);
+        subscript.value = optimize(subscript.value);
+        return subscript;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expr = optimize(stmt.expr);
+        // nothing left to evaluate
+        if (isConstant(stmt.expr)) return null;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.value != null) stmt.value = optimize(stmt.value);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        stmt.statements = optimizeAll(stmt.statements);
+        if (stmt.statements.isEmpty()) return null;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        stmt.condition = condition(stmt.condition);
+        stmt.thenBranch = optimize(stmt.thenBranch);
+        if (stmt.elseBranch != null) stmt.elseBranch = optimize(stmt.elseBranch);
+
+        if (isConstant(stmt.condition)) {
+            return isTruthy(valueOf(stmt.condition)) ? stmt.thenBranch : stmt.elseBranch;
+        }
+        if (stmt.thenBranch == null && stmt.elseBranch == null) {
+            return new Stmt.Expression(stmt.condition);
+        }
+        if (isNot(stmt.condition) && stmt.elseBranch != null) {
+            Stmt thenBranch = stmt.thenBranch;
+            stmt.condition = ((Expr.Unary) stmt.condition).right;
+            stmt.thenBranch = stmt.elseBranch;
+            stmt.elseBranch = thenBranch;
+        }
+        if (stmt.thenBranch == null) stmt.thenBranch = empty();
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        stmt.condition = condition(stmt.condition);
+        if (isConstant(stmt.condition) && !isTruthy(valueOf(stmt.condition))) return null;
+
+        stmt.body = optimize(stmt.body);
+        if (stmt.body == null) stmt.body = empty();
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        stmt.body = optimizeAll(stmt.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) stmt.value = optimize(stmt.value);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.funcs) {
+            visitFunctionStmt(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitUseLibStmt(Stmt.UseLib useLib) {
+        return useLib;
+    }
+}
@@ -0,0 +1,138 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// front end for large scripts. the tokens are cut where a top-level declaration starts and the
+// pieces are parsed on the common ForkJoin pool, then resolved and optimized there too: top-level statements
+// only meet in globals, so no scope crosses a cut. every task reports into a buffer of its own
+// and the buffers are printed in source order, the same output the sequential front end gives
+final class ParallelFrontEnd {
+    // smaller scripts are done before the tasks would be forked
+    static final int MIN_SOURCE = 1 << 18;
+    static final int PARALLELISM = ForkJoinPool.getCommonPoolParallelism();
+    // tokens per piece at least, a cut only falls between two declarations
+    private static final int PIECE_TOKENS = 1 << 14;
+
+    private static final class Piece {
+        final List<Token> tokens;
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final LoxContext diagnostics;
+        List<Stmt> statements;
+        Resolver resolver;
+
+        Piece(LoxEngine engine, List<Token> tokens) {
+            this.tokens = tokens;
+            this.diagnostics = new LoxContext(engine, new PrintStream(errors, true));
+        }
+    }
+
+    private ParallelFrontEnd() {
+    }
+
+    // null when the sequential front end should run instead, it then reports any syntax error
+    // itself, error recovery may cross a cut and a piece couldn't tell
+    static AstCache.Program parse(LoxContext context, CharSequence source) {
+        LoxEngine engine = context.engine();
+        LoxContext scanning = new LoxContext(engine, new PrintStream(OutputStream.nullOutputStream()));
+        List<Token> tokens = new Scanner(source, scanning).scanTokens();
+        if (scanning.hadError) return null;
+
+        List<Piece> pieces = split(engine, tokens);
+        if (pieces.size() < 2) return null;
+
+        forEach(pieces, piece -> piece.statements = new Parser(piece.tokens, piece.diagnostics).parse());
+        for (Piece piece : pieces) {
+            if (piece.diagnostics.hadError) return null;
+        }
+
+        forEach(pieces, piece -> {
+            piece.resolver = new Resolver(piece.diagnostics);
+            piece.resolver.resolve(piece.statements);
+            if (!piece.diagnostics.hadError) new Optimizer().optimize(piece.statements);
+        });
+
+        List<Stmt> statements = new ArrayList<>();
+        List<Expr.Get> gets = new ArrayList<>();
+        List<Expr.Set> sets = new ArrayList<>();
+        int frameSize = 0;
+        for (Piece piece : pieces) {
+            statements.addAll(piece.statements);
+            gets.addAll(piece.resolver.gets);
+            sets.addAll(piece.resolver.sets);
+            frameSize = Math.max(frameSize, piece.resolver.frameSize());
+            if (piece.diagnostics.hadError) {
+                context.err.print(piece.errors.toString());
+                context.hadError = true;
+            }
+        }
+        return new AstCache.Program(statements, frameSize, gets, sets);
+    }
+
+    // cuts after a ';' or '}' outside any bracket when a class, fun or var follows
+    private static List<Piece> split(LoxEngine engine, List<Token> tokens) {
+        List<Piece> pieces = new ArrayList<>();
+        int depth = 0;
+        int from = 0;
+        int end = tokens.size() - 1;
+        for (int i = 0; i < end; i++) {
+            TokenType type = tokens.get(i).type;
+            switch (type) {
+                case LEFT_PAREN, LEFT_BRACE, LEFT_SQ_BRACE -> depth++;
+                case RIGHT_PAREN, RIGHT_BRACE, RIGHT_SQ_BRACE -> depth--;
+                default -> { }
+            }
+            if (depth != 0 || i + 1 - from < PIECE_TOKENS || (type != SEMICOLON && type != RIGHT_BRACE)) continue;
+
+            TokenType next = tokens.get(i + 1).type;
+            if (next == CLASS || next == FUN || next == VAR) {
+                pieces.add(new Piece(engine, piece(tokens, from, i + 1)));
+                from = i + 1;
+            }
+        }
+        pieces.add(new Piece(engine, piece(tokens, from, end)));
+        return pieces;
+    }
+
+    // the tokens of [from, to) and an EOF where the next piece starts
+    private static List<Token> piece(List<Token> tokens, int from, int to) {
+        Token next = tokens.get(to);
+        List<Token> piece = new ArrayList<>(to - from + 1);
+        piece.addAll(tokens.subList(from, to));
+        piece.add(new Token(EOF, "", null, next.line, next.offset, 0));
+        return piece;
+    }
+
+    private static void forEach(List<Piece> pieces, Consumer<Piece> task) {
+        List<Callable<Void>> calls = new ArrayList<>(pieces.size());
+        for (Piece piece : pieces) {
+            calls.add(() -> {
+                task.accept(piece);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> done : ForkJoinPool.commonPool().invokeAll(calls)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoxContext.Cancelled();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            if (e.getCause() instanceof Error cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
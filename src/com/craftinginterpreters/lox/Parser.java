@@ -2,6 +2,7 @@ package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -11,11 +12,21 @@ public class Parser {
     private static class ParseError extends RuntimeException{}
 
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // tokens are pulled as the parser goes, it only ever looks one behind and two ahead
+    private final Iterator<Token> tokens;
+    private Token previous = null;
+    private Token current;
+    private Token lookahead = null;
+    private final LoxContext context;
 
-    public Parser(List<Token> tokens) {
+    public Parser(Iterator<Token> tokens, LoxContext context) {
         this.tokens = tokens;
+        this.context = context;
+        this.current = tokens.next();
+    }
+
+    public Parser(List<Token> tokens, LoxContext context) {
+        this(tokens.iterator(), context);
     }
 
     List<Stmt> parse() {
@@ -27,7 +38,7 @@ public class Parser {
         return statements;
     }
 
-    private Stmt declaration() {
+    Stmt declaration() {
         try {
 
             if (match(CLASS)) return classDeclaration();
@@ -150,10 +161,10 @@ public class Parser {
 
 
         if ( peek().type == EOF ) {
-            Lox.error( peek() , "Can't return from top level code");
+            context.error( peek() , "Can't return from top level code");
         }
         else if ( !check(RIGHT_BRACE)) {
-            Lox.error(peek() , "\"Don't expect any expression after return\"");
+            context.error(peek() , "\"Don't expect any expression after return\"");
         }
         return new Stmt.Return(keyword , value);
     }
@@ -280,6 +291,8 @@ public class Parser {
                 return new Expr.Assignment(name , value);
             } else if (expr instanceof Expr.Get get) {
                 return new Expr.Set(get.Obj , get.name , value);
+            } else if (expr instanceof Expr.Subscript subscript) {
+                return new Expr.SubscriptSet(subscript.object , subscript.bracket , subscript.index , value);
             }
 
             error(equals , "Invalid assignment target");
@@ -402,6 +415,11 @@ public class Parser {
                 Token name = consume(IDENTIFIER
                  , "Expect property name after '.'");
                 expr = new Expr.Get(expr , name);
+            } else if (match(LEFT_SQ_BRACE)) {
+                Token bracket = previous();
+                Expr index = expression();
+                consume(RIGHT_SQ_BRACE , "Expect ']' after index.");
+                expr = new Expr.Subscript(expr , bracket , index);
             }
             else { break; }
         }
@@ -429,24 +447,34 @@ public class Parser {
     }
 
     private Expr multiLiteral() {
-        ArrayList<Object> values = new ArrayList<>();
-
-
-        values.add(advance().literal);
+        Token bracket = previous();
+        List<Expr> elements = new ArrayList<>();
+        if (!check(RIGHT_SQ_BRACE)) {
+            do {
+                elements.add(expression());
+            } while (match(COMMA));
+        }
 
-        if ( check(COMMA) ) {
+        consume(RIGHT_SQ_BRACE , "Expect ']' after array elements.");
 
-            while( check(COMMA) ) {
-                consume(COMMA , "Expect ',' to separate values");
-                Token t = advance();
-                values.add(t.literal);
-            }
+        return new Expr.MultiLiteral(bracket , elements);
+    }
 
+    private Expr mapLiteral() {
+        Token brace = previous();
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+        if (!check(RIGHT_BRACE)) {
+            do {
+                keys.add(expression());
+                consume(COLON , "Expect ':' after map key.");
+                values.add(expression());
+            } while (match(COMMA));
         }
 
-        consume(RIGHT_SQ_BRACE , "Expect ']' after array declaration");
+        consume(RIGHT_BRACE , "Expect '}' after map entries.");
 
-        return new Expr.MultiLiteral(values);
+        return new Expr.MapLiteral(brace , keys , values);
     }
 
     private Expr checkIfMultiLiteral(TokenType types) {
@@ -472,6 +500,8 @@ public class Parser {
 
     private Expr primary() {
         if (match(LEFT_SQ_BRACE)) { return multiLiteral(); }
+        // a '{' starting a statement is a block, anywhere else it starts a map
+        if (match(LEFT_BRACE)) { return mapLiteral(); }
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NIL)) return new Expr.Literal(null);
@@ -501,13 +531,6 @@ public class Parser {
                 );
                 advance(); advance();
                 return e;
-            } else if (peek().type == LEFT_SQ_BRACE) {
-                Token name = previous();
-                consume(LEFT_SQ_BRACE , "terst");
-                Expr index = expression();
-                consume(RIGHT_SQ_BRACE , "terst");
-
-                return new Expr.Subscript(name , index);
             }
             return new Expr.Variable(previous());
         }
@@ -522,7 +545,7 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        context.error(token, message);
         return new ParseError();
     }
 
@@ -576,28 +599,38 @@ public class Parser {
 
     private boolean checkCurr(TokenType type) {
         if (isAtEnd()) return false;
-        return tokens.get(current-1).type == type;
+        return previous.type == type;
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = lookahead != null ? lookahead : tokens.next();
+            lookahead = null;
+        }
         return previous();
     }
 
-    private boolean isAtEnd() {
+    boolean isAtEnd() {
         return peek().type == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
+    }
+
+    // where the next declaration starts, LoxDocument syncs with its old tree there
+    Token next() {
+        return current;
     }
 
     private Token peekNext() {
-        return tokens.get(current+1);
+        if (lookahead == null) lookahead = isAtEnd() ? current : tokens.next();
+        return lookahead;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
 
@@ -1,5 +1,7 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,27 +10,79 @@ import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private record AnalysisInfo(Token t , Boolean declareInfo, Boolean hadUsed) {
+    private static class AnalysisInfo {
+        final Token t;
+        boolean declareInfo;
+        boolean hadUsed;
+        // frame slot, unused once the variable turns out to be captured
+        final int slot;
+
+        // a closure reads it, so it lives in the Environment of its scope at envSlot
+        boolean captured = false;
+        int envSlot = -1;
+
+        // patched when the scope ends and the variable's home is known
+        final List<Stmt> decls = new ArrayList<>(1);
+        final List<Use> uses = new ArrayList<>();
+
+        AnalysisInfo(Token t, boolean declareInfo, boolean hadUsed, int slot) {
+            this.t = t;
+            this.declareInfo = declareInfo;
+            this.hadUsed = hadUsed;
+            this.slot = slot;
+        }
+    }
+
+    // a reference and the scopes between it and the declaration
+    private record Use(Expr.Local expr, List<Scope> crossed) {
     }
-    private final Interpreter interpreter;
-    private final Stack<Map<String , AnalysisInfo>> scopes = new Stack<>();
+
+    // locals take slots in the frame of the enclosing function, only those some closure
+    // captures are moved to an Environment created for their scope
+    private static class Scope {
+        final Map<String, AnalysisInfo> vars = new HashMap<>();
+        // crossing a function scope means the variable escapes into a closure
+        final boolean function;
+        final int frameBase;
+        int envSize = 0;
+
+        Scope(boolean function, int frameBase) {
+            this.function = function;
+            this.frameBase = frameBase;
+        }
+    }
+
+    // only reported to, a parallel front end hands each task a context of its own
+    private final LoxContext context;
+    private final GlobalSlots globals;
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
+    // frame slots of the function being resolved, the script counts as one
+    private int frameSlots = 0;
+    private int frameSize = 0;
+
+    // property sites whose inline caches are reset when the tree is cached for another run
+    final List<Expr.Get> gets = new ArrayList<>();
+    final List<Expr.Set> sets = new ArrayList<>();
+
     private enum FunctionType {
         NONE,
         FUNCTION,
+        INITIALIZER,
         METHOD
     }
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    public Resolver(LoxContext context) {
+        this.context = context;
+        this.globals = context.engine().globals;
     }
 
     public void reportUsedVariable(Map<String, AnalysisInfo> scope) {
 
         for ( String var : scope.keySet() ) {
-            if ( scope.get(var).hadUsed == Boolean.FALSE && ! scope.get(var).t.lexeme.startsWith("_")) {
-                Lox.error( scope.get(var).t.line , "Variable<" + scope.get(var).t.lexeme + "> was never used" );
+            if ( !scope.get(var).hadUsed && ! scope.get(var).t.lexeme.startsWith("_")) {
+                context.error( scope.get(var).t.line , "Variable<" + scope.get(var).t.lexeme + "> was never used" );
             }
         }
 
@@ -54,6 +108,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitMultiLiteralExpr(Expr.MultiLiteral expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitMapLiteralExpr(Expr.MapLiteral expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            resolve(expr.keys.get(i));
+            resolve(expr.values.get(i));
+        }
         return null;
     }
 
@@ -65,28 +131,34 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) != null && (scopes.peek().get(expr.name.lexeme).declareInfo == Boolean.FALSE )) {
-            Lox.error(expr.name , "Can't read local variable in its own initializer");
+        if (!scopes.isEmpty() && scopes.peek().vars.get(expr.name.lexeme) != null && !scopes.peek().vars.get(expr.name.lexeme).declareInfo) {
+            context.error(expr.name , "Can't read local variable in its own initializer");
         }
 
         resolveLocal(expr , expr.name);
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private void resolveLocal(Expr.Local expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                AnalysisInfo info = scopes.get(i).get(name.lexeme);
-                scopes.get(i).put(name.lexeme , new AnalysisInfo(info.t , info.declareInfo , true));
+            AnalysisInfo info = scopes.get(i).vars.get(name.lexeme);
+            if (info != null) {
+                List<Scope> crossed = i == scopes.size() - 1 ? List.of() : new ArrayList<>(scopes.subList(i + 1, scopes.size()));
+                for (Scope scope : crossed) {
+                    if (scope.function) info.captured = true;
+                }
+                info.hadUsed = true;
+                info.uses.add(new Use(expr, crossed));
                 return;
             }
         }
 
+        expr.global = globals.slot(name.lexeme);
     }
 
     @Override
     public Void visitGlobalVariableExpr(Expr.GlobalVariable expr) {
+        expr.global = globals.slot(expr.name.lexeme);
         return null;
     }
 
@@ -129,12 +201,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitGetExpr(Expr.Get get) {
+        gets.add(get);
         resolve(get.Obj);
         return null;
     }
 
     @Override
     public Void visitSetExpr(Expr.Set set) {
+        sets.add(set);
         resolve(set.value);
         resolve(set.obj);
         return null;
@@ -148,6 +222,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSubscriptExpr(Expr.Subscript subscript) {
+        resolve(subscript.object);
+        resolve(subscript.index);
+        return null;
+    }
+
+    @Override
+    public Void visitSubscriptSetExpr(Expr.SubscriptSet subscript) {
+        resolve(subscript.object);
+        resolve(subscript.index);
+        resolve(subscript.value);
         return null;
     }
 
@@ -164,7 +248,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.value != null ) {
             resolve(stmt.value);
         }
@@ -174,34 +258,92 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme , new AnalysisInfo(name , true , false));
-    }
-
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+        scopes.peek().vars.get(name.lexeme).declareInfo = true;
+    }
+
+    // globals (no scope) keep slot -1 and get their global index, locals are patched by endScope
+    private AnalysisInfo declare(Token name, Stmt decl) {
+        if (scopes.isEmpty()) {
+            int global = globals.slot(name.lexeme);
+            if (decl instanceof Stmt.Var var) {
+                var.global = global;
+            } else if (decl instanceof Stmt.Function function) {
+                function.global = global;
+            } else if (decl instanceof Stmt.Class klass) {
+                klass.global = global;
+            }
+            return null;
+        }
 
-        Map<String, AnalysisInfo> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name , "Already a variable with name <" + name.lexeme + "> in this scope");
+        Map<String, AnalysisInfo> vars = scopes.peek().vars;
+        AnalysisInfo info = vars.get(name.lexeme);
+        if (info != null) {
+            context.error(name , "Already a variable with name <" + name.lexeme + "> in this scope");
+            info.declareInfo = false;
+        } else {
+            info = new AnalysisInfo(name, false, false, frameSlots++);
+            if (frameSlots > frameSize) frameSize = frameSlots;
+            vars.put(name.lexeme, info);
         }
-        scope.put(name.lexeme, new AnalysisInfo( name ,false,false));
+        if (decl != null) info.decls.add(decl);
+        return info;
     }
 
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        beginScope(false);
         resolve(stmt.statements);
-        endScope();
+        stmt.envSize = endScope().envSize;
         return null;
     }
 
-    private void endScope() {
-        reportUsedVariable(scopes.pop());
+    // every variable of the scope and its inner scopes is known now, so decide where each one lives
+    private Scope endScope() {
+        Scope scope = scopes.pop();
+        reportUsedVariable(scope.vars);
+
+        for (AnalysisInfo info : scope.vars.values()) {
+            if (info.captured) info.envSlot = scope.envSize++;
+        }
+
+        for (AnalysisInfo info : scope.vars.values()) {
+            int slot = info.captured ? info.envSlot : info.slot;
+            for (Use use : info.uses) {
+                use.expr.slot = slot;
+                use.expr.inFrame = !info.captured;
+                // scopes without captured variables create no Environment, so they don't count as a hop
+                int depth = 0;
+                for (Scope crossed : use.crossed) {
+                    if (crossed.envSize > 0) depth++;
+                }
+                use.expr.depth = depth;
+            }
+            for (Stmt decl : info.decls) {
+                if (decl instanceof Stmt.Var var) {
+                    var.slot = slot;
+                    var.captured = info.captured;
+                } else if (decl instanceof Stmt.Function function) {
+                    function.slot = slot;
+                    function.captured = info.captured;
+                } else if (decl instanceof Stmt.Class klass) {
+                    klass.slot = slot;
+                    klass.captured = info.captured;
+                }
+            }
+        }
+
+        // the block is done with its frame slots, the next one reuses them
+        frameSlots = scope.frameBase;
+        return scope;
+    }
+
+    private void beginScope(boolean function) {
+        scopes.push(new Scope(function, frameSlots));
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, AnalysisInfo>());
+    int frameSize() {
+        return frameSize;
     }
 
     void resolve(List<Stmt> statements) {
@@ -237,7 +379,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt , FunctionType.FUNCTION);
@@ -248,46 +390,79 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function stmt , FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        int enclosingSlots = frameSlots;
+        int enclosingSize = frameSize;
+        frameSlots = 0;
+        frameSize = 0;
 
-        beginScope();
+        beginScope(true);
+        List<AnalysisInfo> params = new ArrayList<>(stmt.params.size());
         for (Token param : stmt.params) {
-            declare(param);
+            params.add(declare(param, null));
             define(param);
         }
         resolve(stmt.body);
-        endScope();
+        stmt.envSize = endScope().envSize;
+        stmt.frameSize = frameSize;
+
+        // params arrive in the first frame slots, captured ones are copied into the Environment
+        for (int i = 0; i < params.size(); i++) {
+            if (params.get(i).captured) {
+                if (stmt.paramEnvSlots == null) {
+                    stmt.paramEnvSlots = new int[params.size()];
+                    Arrays.fill(stmt.paramEnvSlots, -1);
+                }
+                stmt.paramEnvSlots[i] = params.get(i).envSlot;
+            }
+        }
+
+        frameSlots = enclosingSlots;
+        frameSize = enclosingSize;
+        currentFunction = enclosingFunction;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) throws Interpreter.BreakFromBlock {
+    public Void visitBreakStmt(Stmt.Break stmt) {
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) throws Interpreter.BreakFromBlock {
+    public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword , "Can't return from top level code");
+            context.error(stmt.keyword , "Can't return from top level code");
         }
         if (stmt.value != null) {
             resolve(stmt.value);
         }
+
+        // an initializer returns `this` whatever it calls last
+        Expr value = stmt.value;
+        while (value instanceof Expr.Grouping grouping) value = grouping.expr;
+        if (value instanceof Expr.Call call && currentFunction != FunctionType.NONE
+                && currentFunction != FunctionType.INITIALIZER) {
+            stmt.tailCall = call;
+        }
         return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null) {
             resolve(stmt.superclass);
         }
 
-        beginScope();
-        scopes.peek().put("this" , new AnalysisInfo(null , true, true ));
+        // bound methods always carry an Environment with `this` in slot 0
+        beginScope(false);
+        AnalysisInfo self = new AnalysisInfo(null , true, true, -1);
+        self.captured = true;
+        scopes.peek().vars.put("this" , self);
 
         for (Stmt.Function method : stmt.funcs) {
             FunctionType declaration = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) declaration = FunctionType.INITIALIZER;
             resolveFunction(method, declaration);
         }
 
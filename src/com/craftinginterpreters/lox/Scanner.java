@@ -1,33 +1,72 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 import static java.lang.Character.isAlphabetic;
 import static java.lang.Character.isDigit;
 
-public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+// scans on demand: the Parser pulls one token at a time, so the whole token list never exists.
+// the source can be any CharSequence, e.g. a CharBuffer over a mapped file, and lexemes are
+// interned slices of it instead of one substring per token
+public class Scanner implements Iterator<Token> {
+    private final CharSequence source;
+    private final int length;
+    private final SymbolTable symbols = new SymbolTable();
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private final LoxContext context;
 
-    public Scanner(String s) {
+    // the token scanToken produced, null when the characters it consumed make none
+    private Token next = null;
+    private boolean reachedEnd = false;
+
+    public Scanner(CharSequence s, LoxContext context) {
+        this(s, 0, 1, context);
+    }
+
+    // resumes at a token boundary of a source scanned before, e.g. the end of a declaration
+    Scanner(CharSequence s, int offset, int line, LoxContext context) {
         this.source = s;
+        this.length = s.length();
+        this.context = context;
+        this.current = offset;
+        this.line = line;
     }
 
     public List<Token> scanTokens() {
-        while(!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        } while (token.type != EOF);
+        return tokens;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !reachedEnd;
+    }
+
+    // keeps returning EOF once the source is exhausted
+    @Override
+    public Token next() {
+        while (!isAtEnd()) {
             start = current;
             scanToken();
+            if (next != null) {
+                Token token = next;
+                next = null;
+                return token;
+            }
         }
 
-        tokens.add(new Token(TokenType.EOF , "" , null , line));
-        return tokens;
+        reachedEnd = true;
+        return new Token(TokenType.EOF , "" , null , line, current, 0);
     }
 
     private void scanToken() {
@@ -83,27 +122,40 @@ public class Scanner {
                     identifier();
                 }
                 else {
-                    Lox.error(line, "Unexpected character." + c);
+                    context.error(line, "Unexpected character." + c);
                 }
         }
 
     }
 
     private void identifier() {
-        while(isAlphabetic(peek()) || match(':') || match('{') || match('}')) advance();
+        // a '::' makes it a use path (std::math::max and friends), only a path may go on with braces. a single ':' or a
+        // brace after a plain name belongs to the next token, as in {k: v}
+        boolean path = false;
+        for (;;) {
+            if (isAlphabetic(peek())) {
+                advance();
+            } else if (peek() == ':' && peekNext() == ':') {
+                advance();
+                advance();
+                path = true;
+            } else if (path && (peek() == '{' || peek() == '}')) {
+                advance();
+            } else {
+                break;
+            }
+        }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        if (text.contains(":")) {
+        TokenType type = keyword();
+        if (type == IDENTIFIER && path) {
             type = USE;
         }
         // check if any space or ; follow by identifier, or else print10 will valid
         char next = peek();
         if ( isAlpha(next) ) {
-            Lox.error(line , "Expect an space after identifier<" + text + ">");
+            context.error(line , "Expect an space after identifier<" + source.subSequence(start, current) + ">");
         } else if (type == USE) {
-            addToken(USE, text);
+            addToken(USE, symbols.intern(source, start, current));
         }
         else {
             addToken(type);
@@ -112,6 +164,59 @@ public class Scanner {
 
     }
 
+    // keywords are told apart by their first letters and checked in place against the source,
+    // the same way clox does it: no substring, no hashing, no map lookup
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'g': return checkKeyword(1, "lobal", GLOBAL);
+            case 'i':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'f': return checkKeyword(2, "", IF);
+                        case 'm': return checkKeyword(2, "port", IMPORT);
+                    }
+                }
+                break;
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'u': return checkKeyword(1, "se", USE);
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+
     private void number() {
         while (isDigit(peek())) advance();
 
@@ -120,12 +225,25 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start , current)));
+        addToken(NUMBER, parseNumber());
+
+    }
 
+    // integers short enough to be exact are summed up in place, the rest goes through parseDouble
+    private Double parseNumber() {
+        if (current - start <= 15) {
+            long value = 0;
+            int i = start;
+            while (i < current && source.charAt(i) >= '0' && source.charAt(i) <= '9') {
+                value = value * 10 + (source.charAt(i++) - '0');
+            }
+            if (i == current) return Interpreter.box(value);
+        }
+        return Double.parseDouble(source.subSequence(start , current).toString());
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= length) return '\0';
         return source.charAt(current+1);
     }
 
@@ -136,13 +254,13 @@ public class Scanner {
         }
 
         if(isAtEnd()) {
-            Lox.error(line , "Unterminated String.");
+            context.error(line , "Unterminated String.");
             return;
         }
 
         advance(); // ignore the " at trailing
 
-        String value = source.substring(start + 1 , current - 1); // ignore the "
+        String value = symbols.intern(source, start + 1 , current - 1); // ignore the "
         addToken(STRING , value);
     }
 
@@ -167,12 +285,12 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start , current);
-        tokens.add(new Token(type , text , literal , line));
+        String text = symbols.intern(source, start , current);
+        next = new Token(type , text , literal , line, start, current - start);
     }
 
     private boolean isAtEnd() {
-        return current == source.length();
+        return current == length;
     }
 
     private boolean isAlpha(char c) {
@@ -180,31 +298,4 @@ public class Scanner {
                 (c >= 'A' && c <= 'Z') ||
                 c == '_';
     }
-
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        // keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-        keywords.put("global",  GLOBAL);
-        keywords.put("break",  BREAK);
-        keywords.put("use",  USE);
-        keywords.put("import",  IMPORT);
-    }
 }
@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// hidden class of a LoxInstance: the field names in the order they were added
+// instances that got their fields in the same order share one Shape, each class has its own tree
+final class Shape {
+    final int size;
+    private final Map<String, Integer> slots;
+    private Map<String, Shape> transitions = null;
+
+    Shape() {
+        this.size = 0;
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.size = parent.size + 1;
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size);
+    }
+
+    // slot of the field, -1 if instances of this shape don't have it
+    int lookup(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // shape after adding a field, shared by every instance taking the same path
+    Shape with(String name) {
+        if (transitions == null) transitions = new HashMap<>();
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
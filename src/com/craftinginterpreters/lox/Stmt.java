@@ -14,8 +14,8 @@ abstract public class Stmt {
         R visitIfStmt(If stmt);
         R visitWhileStmt(While stmt);
         R visitFunctionStmt(Function stmt);
-        R visitBreakStmt(Break stmt) throws Interpreter.BreakFromBlock;
-        R visitReturnStmt(Return stmt) throws Interpreter.BreakFromBlock;
+        R visitBreakStmt(Break stmt);
+        R visitReturnStmt(Return stmt);
 
         R visitClassStmt(Class stmt);
 
@@ -25,7 +25,11 @@ abstract public class Stmt {
     static class Return extends Stmt {
 
         final Token keyword;
-        final Expr value;
+        Expr value;
+
+        // set by the Resolver when the value is a call, groupings around it looked through: the
+        // caller's frame can go before the callee runs. the Optimizer keeps this same node
+        Expr.Call tailCall = null;
 
         public Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -41,7 +45,7 @@ abstract public class Stmt {
     static class Break extends Stmt {
 
         @Override
-        <R> R accept(Visitor<R> visitor) throws Interpreter.BreakFromBlock {
+        <R> R accept(Visitor<R> visitor) {
             return visitor.visitBreakStmt(this);
         }
     }
@@ -62,7 +66,7 @@ abstract public class Stmt {
 
 
     static class Expression extends Stmt {
-        final Expr expr;
+        Expr expr;
 
         public Expression(Expr expr) {
             this.expr = expr;
@@ -76,7 +80,13 @@ abstract public class Stmt {
 
     static class Var extends Stmt {
         final Token name;
-        final Expr value;
+        Expr value;
+
+        // frame slot, or Environment slot when a closure captures it, -1 for globals (set by the Resolver)
+        int slot = -1;
+        boolean captured = false;
+        // index in the global Environment when slot is -1
+        int global = -1;
 
         public Var(Token name, Expr value) {
             this.name = name;
@@ -90,7 +100,10 @@ abstract public class Stmt {
     }
 
     static class Block extends Stmt {
-        final List<Stmt> statements;
+        List<Stmt> statements;
+
+        // captured locals declared directly in this block, the block only gets an Environment for those
+        int envSize = 0;
 
         public Block(List<Stmt> statements) {
             this.statements = statements;
@@ -106,7 +119,17 @@ abstract public class Stmt {
 
         final Token name;
         final List<Token> params;
-        final List<Stmt> body;
+        List<Stmt> body;
+
+        // slot of the function name in the enclosing scope, -1 for globals
+        int slot = -1;
+        boolean captured = false;
+        int global = -1;
+        // frame slots used by params and every block of the body, params come first
+        int frameSize = 0;
+        // captured locals of the function scope, and their Environment slot per param (null when none is)
+        int envSize = 0;
+        int[] paramEnvSlots = null;
 
         public Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -122,9 +145,9 @@ abstract public class Stmt {
 
     static class If extends Stmt {
 
-        final Expr condition;
-        final Stmt thenBranch;
-        final Stmt elseBranch;
+        Expr condition;
+        Stmt thenBranch;
+        Stmt elseBranch;
 
         public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
@@ -140,9 +163,9 @@ abstract public class Stmt {
 
     static class While extends Stmt {
 
-        final Expr condition;
+        Expr condition;
 
-        final Stmt body;
+        Stmt body;
 
         public While(Expr condition, Stmt body) {
             this.condition = condition;
@@ -161,6 +184,10 @@ abstract public class Stmt {
         final List<Stmt.Function> funcs;
         final Expr.Variable superclass;
 
+        int slot = -1;
+        boolean captured = false;
+        int global = -1;
+
         public Class(Token name, Expr.Variable superclass, List<Function> funcs) {
             this.name = name;
             this.superclass = superclass;
@@ -168,7 +195,7 @@ abstract public class Stmt {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) throws Interpreter.BreakFromBlock {
+        <R> R accept(Visitor<R> visitor) {
             return visitor.visitClassStmt(this);
         }
     }
@@ -204,6 +231,6 @@ abstract public class Stmt {
 
 
 
-    abstract <R> R accept(Visitor<R> visitor) throws Interpreter.BreakFromBlock;
+    abstract <R> R accept(Visitor<R> visitor);
 
 }
@@ -0,0 +1,54 @@
+package com.craftinginterpreters.lox;
+
+// interns slices of the source, so every occurrence of a name shares one String.
+// lookups hash the chars in place and only allocate the first time a slice is seen
+final class SymbolTable {
+    private String[] entries = new String[256];
+    private int[] hashes = new int[256];
+    private int size = 0;
+
+    String intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = entries.length - 1;
+        int i = (hash ^ (hash >>> 16)) & mask;
+        for (String entry = entries[i]; entry != null; entry = entries[i]) {
+            if (hashes[i] == hash && matches(entry, source, start, end)) return entry;
+            i = (i + 1) & mask;
+        }
+
+        String symbol = source.subSequence(start, end).toString();
+        entries[i] = symbol;
+        hashes[i] = hash;
+        if (++size * 2 > entries.length) grow();
+        return symbol;
+    }
+
+    private static boolean matches(String entry, CharSequence source, int start, int end) {
+        if (entry.length() != end - start) return false;
+        for (int i = 0; i < entry.length(); i++) {
+            if (entry.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] oldEntries = entries;
+        int[] oldHashes = hashes;
+        entries = new String[oldEntries.length * 2];
+        hashes = new int[oldEntries.length * 2];
+
+        int mask = entries.length - 1;
+        for (int j = 0; j < oldEntries.length; j++) {
+            if (oldEntries[j] == null) continue;
+            int hash = oldHashes[j];
+            int i = (hash ^ (hash >>> 16)) & mask;
+            while (entries[i] != null) i = (i + 1) & mask;
+            entries[i] = oldEntries[j];
+            hashes[i] = hash;
+        }
+    }
+}
@@ -2,15 +2,27 @@ package com.craftinginterpreters.lox;
 
 public class Token {
     final TokenType type;
+    // interned by the Scanner, equal lexemes are the same String
     final String lexeme;
     final Object literal;
-    final int line;
+    // both shifted in place when LoxDocument keeps a declaration across an edit before it
+    int line;
+
+    // slice of the source the token was scanned from, offset is -1 for synthetic tokens
+    int offset;
+    final int length;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1, 0);
+    }
+
+    public Token(TokenType type, String lexeme, Object literal, int line, int offset, int length) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
+        this.length = length;
     }
 
     public String toString(){
@@ -0,0 +1,654 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// stack VM running the chunks emitted by the Compiler, globals and natives are shared with the Interpreter
+public class VM {
+
+    private static final int FRAMES_MAX = 4096;
+
+    static class Closure {
+        final Chunk function;
+        final Upvalue[] upvalues;
+
+        Closure(Chunk function, Upvalue[] upvalues) {
+            this.function = function;
+            this.upvalues = upvalues;
+        }
+
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    // points into the stack while the variable is alive, holds the value once its scope is gone
+    static class Upvalue {
+        final int index;
+        boolean isOpen = true;
+        Object closed;
+        Upvalue next;
+
+        Upvalue(int index, Upvalue next) {
+            this.index = index;
+            this.next = next;
+        }
+    }
+
+    static class Klass {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+
+        Klass(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return "<class " + name + ">";
+        }
+    }
+
+    static class Instance {
+        final Klass klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(Klass klass) {
+            this.klass = klass;
+        }
+
+        public String toString() {
+            return "<" + klass.name + " instance>";
+        }
+    }
+
+    static class BoundMethod {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+
+    public VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        for (int i = 0; i < FRAMES_MAX; i++) {
+            frames[i] = new CallFrame();
+        }
+    }
+
+    public void interpret(Chunk script) {
+        Closure closure = new Closure(script, new Upvalue[0]);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            interpreter.context.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        Chunk chunk = frame.closure.function;
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants.values;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OP_CONST:
+                    push(constants[code[ip++] & 0xff]);
+                    break;
+                case OP_CONST_LONG: {
+                    int index = ((code[ip] & 0xff) << 16) | ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                    ip += 3;
+                    push(constants[index]);
+                    break;
+                }
+                case OP_NIL: push(null); break;
+                case OP_TRUE: push(true); break;
+                case OP_FALSE: push(false); break;
+                case OP_POP: stack[--sp] = null; break;
+
+                case OP_GET_LOCAL:
+                    push(stack[base + (code[ip++] & 0xff)]);
+                    break;
+                case OP_SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OP_GET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.isDefined(name)) {
+                        throw error(chunk.lines[ip - 1], "Undefined variable '" + name + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case OP_DEFINE_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    globals.define(name, pop());
+                    break;
+                }
+                case OP_SET_GLOBAL: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.isDefined(name)) {
+                        throw error(chunk.lines[ip - 1], "Undefined variable '" + name + "'.");
+                    }
+                    globals.define(name, stack[sp - 1]);
+                    break;
+                }
+                case OP_GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.isOpen ? stack[upvalue.index] : upvalue.closed);
+                    break;
+                }
+                case OP_SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.isOpen) {
+                        stack[upvalue.index] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OP_GET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof Instance instance)) {
+                        throw error(chunk.lines[ip - 1], "Only instances have properties.");
+                    }
+
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+
+                    Closure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw error(chunk.lines[ip - 1], "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new BoundMethod(instance, method);
+                    break;
+                }
+                case OP_SET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof Instance instance)) {
+                        throw error(chunk.lines[ip - 1], "Only instances have fields.");
+                    }
+
+                    Object value = pop();
+                    instance.fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+
+                case OP_EQUAL: {
+                    Object b = pop();
+                    Object a = pop();
+                    push(isEqual(a, b));
+                    break;
+                }
+                case OP_GREATER: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] > b;
+                    break;
+                }
+                case OP_GREATER_EQUAL: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] >= b;
+                    break;
+                }
+                case OP_LESS: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] < b;
+                    break;
+                }
+                case OP_LESS_EQUAL: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = (double) stack[sp - 1] <= b;
+                    break;
+                }
+                case OP_ADD: {
+                    Object b = pop();
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double x && b instanceof Double y) {
+                        stack[sp - 1] = Interpreter.box(x + y);
+                    } else if (a instanceof String x && b instanceof String y) {
+                        stack[sp - 1] = x + y;
+                    } else if (a instanceof String x && b instanceof Double) {
+                        stack[sp - 1] = x + interpreter.stringify(b);
+                    } else {
+                        throw error(chunk.lines[ip - 1], "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OP_SUBTRACT: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = Interpreter.box((double) stack[sp - 1] - b);
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = Interpreter.box((double) stack[sp - 1] * b);
+                    break;
+                }
+                case OP_DIVIDE: {
+                    checkNumberOperands(chunk, ip);
+                    double b = (double) pop();
+                    stack[sp - 1] = Interpreter.box((double) stack[sp - 1] / b);
+                    break;
+                }
+                case OP_NOT:
+                    stack[sp - 1] = !isTrusty(stack[sp - 1]);
+                    break;
+                case OP_NEGATE:
+                    if (!(stack[sp - 1] instanceof Double value)) {
+                        throw error(chunk.lines[ip - 1], "Operand must be a number");
+                    }
+                    stack[sp - 1] = Interpreter.box(-value);
+                    break;
+                case OP_SUBSCRIPT: {
+                    Object index = pop();
+                    if (stack[sp - 1] instanceof LoxMap map) {
+                        stack[sp - 1] = map.get(index);
+                        break;
+                    }
+                    LoxArray array = checkArray(stack[sp - 1], chunk.lines[ip - 1]);
+                    stack[sp - 1] = array.get(checkIndex(array, index, chunk.lines[ip - 1]));
+                    break;
+                }
+                case OP_SET_SUBSCRIPT: {
+                    Object value = pop();
+                    Object index = pop();
+                    if (stack[sp - 1] instanceof LoxMap map) {
+                        map.put(index, value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    LoxArray array = checkArray(stack[sp - 1], chunk.lines[ip - 1]);
+                    array.set(checkIndex(array, index, chunk.lines[ip - 1]), value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OP_ARRAY: {
+                    int count = readShort(code, ip);
+                    ip += 2;
+                    Object[] values = Arrays.copyOfRange(stack, sp - count, sp);
+                    Arrays.fill(stack, sp - count, sp, null);
+                    sp -= count;
+                    push(new LoxArray(values));
+                    break;
+                }
+                case OP_MAP: {
+                    int count = readShort(code, ip);
+                    ip += 2;
+                    LoxMap map = new LoxMap(count);
+                    for (int i = sp - 2 * count; i < sp; i += 2) {
+                        map.put(stack[i], stack[i + 1]);
+                    }
+                    Arrays.fill(stack, sp - 2 * count, sp, null);
+                    sp -= 2 * count;
+                    push(map);
+                    break;
+                }
+
+                case OP_JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OP_JUMP_IF_FALSE:
+                    if (!isTrusty(stack[sp - 1])) {
+                        ip += readShort(code, ip);
+                    }
+                    ip += 2;
+                    break;
+                case OP_LOOP:
+                    interpreter.context.checkCancelled();
+                    ip -= readShort(code, ip) - 2;
+                    break;
+
+                case OP_CALL: {
+                    int argc = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[sp - argc - 1], argc);
+
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function;
+                    code = chunk.code;
+                    constants = chunk.constants.values;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OP_TAIL_CALL: {
+                    int argc = code[ip++] & 0xff;
+                    int callee = sp - argc - 1;
+                    Closure closure = null;
+                    if (stack[callee] instanceof Closure target) {
+                        closure = target;
+                    } else if (stack[callee] instanceof BoundMethod bound) {
+                        closure = bound.method;
+                    }
+                    // anything else is an ordinary call, the OP_RETURN after this hands its result back
+                    if (closure == null || closure.function.arity != argc) {
+                        frame.ip = ip;
+                        callValue(stack[callee], argc);
+
+                        frame = frames[frameCount - 1];
+                        chunk = frame.closure.function;
+                        code = chunk.code;
+                        constants = chunk.constants.values;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+
+                    // the callee and its arguments replace this frame's slots
+                    interpreter.context.checkCancelled();
+                    if (stack[callee] instanceof BoundMethod bound) stack[callee] = bound.receiver;
+                    closeUpvalues(base);
+                    System.arraycopy(stack, callee, stack, base, argc + 1);
+                    Arrays.fill(stack, base + argc + 1, sp, null);
+                    sp = base + argc + 1;
+                    frame.closure = closure;
+                    chunk = closure.function;
+                    code = chunk.code;
+                    constants = chunk.constants.values;
+                    ip = 0;
+                    break;
+                }
+                case OP_INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argc = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(name, argc);
+
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function;
+                    code = chunk.code;
+                    constants = chunk.constants.values;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OP_CLOSURE: {
+                    Chunk function = (Chunk) constants[readShort(code, ip)];
+                    ip += 2;
+                    Upvalue[] upvalues = new Upvalue[function.upvalueCount];
+                    for (int i = 0; i < upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    push(new Closure(function, upvalues));
+                    break;
+                }
+                case OP_CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OP_RETURN: {
+                    Object result = pop();
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    if (frameCount == 0) return;
+
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function;
+                    code = chunk.code;
+                    constants = chunk.constants.values;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OP_CLASS: {
+                    push(new Klass((String) constants[readShort(code, ip)]));
+                    ip += 2;
+                    break;
+                }
+                case OP_INHERIT: {
+                    if (!(pop() instanceof Klass superclass)) {
+                        throw error(chunk.lines[ip - 1], "Superclass must be a class.");
+                    }
+                    // copy-down inheritance, the subclass methods are added afterwards
+                    ((Klass) stack[sp - 1]).methods.putAll(superclass.methods);
+                    break;
+                }
+                case OP_METHOD: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Closure method = (Closure) pop();
+                    ((Klass) stack[sp - 1]).methods.put(name, method);
+                    break;
+                }
+                case OP_USE: {
+                    String namespace = (String) constants[readShort(code, ip)];
+                    String file = (String) constants[readShort(code, ip + 2)];
+                    ip += 4;
+                    interpreter.useLib(namespace, file);
+                    break;
+                }
+
+                default:
+                    throw error(chunk.lines[ip - 1], "Unknown opcode " + instruction);
+            }
+        }
+    }
+
+    private LoxArray checkArray(Object object, int line) {
+        if (object instanceof LoxArray array) return array;
+        throw error(line, "Only arrays and maps can be subscripted.");
+    }
+
+    private int checkIndex(LoxArray array, Object index, int line) {
+        if (!(index instanceof Double number)) {
+            throw error(line, "Array index must be a number.");
+        }
+        int i = array.index(number);
+        if (i < 0) throw error(line, "Array index out of bounds.");
+        return i;
+    }
+
+    private void callValue(Object callee, int argc) {
+        if (callee instanceof Closure closure) {
+            call(closure, argc);
+            return;
+        }
+
+        if (callee instanceof BoundMethod bound) {
+            stack[sp - argc - 1] = bound.receiver;
+            call(bound.method, argc);
+            return;
+        }
+
+        if (callee instanceof Klass klass) {
+            stack[sp - argc - 1] = new Instance(klass);
+            Closure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argc);
+            } else if (argc != 0) {
+                throw error("Expected 0 arguments but got " + argc + ".");
+            }
+            return;
+        }
+
+        if (callee instanceof LoxCallable function) {
+            if (function.arity() >= 0 && argc != function.arity()) {
+                throw error("Expected " + function.arity() + " arguments but got " + argc + ".");
+            }
+
+            List<Object> args = new ArrayList<>(argc);
+            for (int i = sp - argc; i < sp; i++) {
+                args.add(stack[i]);
+            }
+            Object result = function.call(interpreter, args);
+
+            Arrays.fill(stack, sp - argc - 1, sp, null);
+            sp -= argc + 1;
+            push(result);
+            return;
+        }
+
+        throw error("Can only call functions and classes.");
+    }
+
+    private void invoke(String name, int argc) {
+        if (!(stack[sp - argc - 1] instanceof Instance instance)) {
+            throw error("Only instances have properties.");
+        }
+
+        // a field holding a function shadows the method of the same name
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argc - 1] = field;
+            callValue(field, argc);
+            return;
+        }
+
+        Closure method = instance.klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argc);
+    }
+
+    private void call(Closure closure, int argc) {
+        if (argc != closure.function.arity) {
+            throw error("Expected " + closure.function.arity + " arguments but got " + argc + ".");
+        }
+
+        interpreter.context.checkCancelled();
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argc - 1;
+    }
+
+    // open upvalues are kept sorted by stack index, highest first
+    private Upvalue captureUpvalue(int index) {
+        Upvalue prev = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.index > index) {
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.index == index) return upvalue;
+
+        Upvalue created = new Upvalue(index, upvalue);
+        if (prev == null) {
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.index >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.index];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void checkNumberOperands(Chunk chunk, int ip) {
+        if (stack[sp - 2] instanceof Double && stack[sp - 1] instanceof Double) return;
+        throw error(chunk.lines[ip - 1], "Operands must be numbers.");
+    }
+
+    private boolean isTrusty(Object obj) {
+        if (obj == null) return false;
+        if (obj instanceof Boolean) return (boolean) obj;
+        return true;
+    }
+
+    private boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    // reported at the line of the instruction the current frame is executing
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        return error(frame.closure.function.lines[Math.max(frame.ip - 1, 0)], message);
+    }
+
+    private RuntimeError error(int line, String message) {
+        return new RuntimeError(new Token(TokenType.IDENTIFIER, "", null, line), message);
+    }
+}